@@ -1,15 +1,14 @@
 package org.codenil.comm;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-
 import org.codenil.comm.callback.ConnectCallback;
 import org.codenil.comm.callback.DisconnectCallback;
 import org.codenil.comm.callback.MessageCallback;
+import org.codenil.comm.callback.ResponseCallback;
 import org.codenil.comm.connections.ConnectionInitializer;
 import org.codenil.comm.connections.PeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
-import org.codenil.comm.message.DisconnectReason;
+import org.codenil.comm.connections.StripeStrategy;
+import org.codenil.comm.connections.StripedPeerConnection;
 import org.codenil.comm.message.RawMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +16,12 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -28,15 +31,29 @@ public class Communication {
 
     private static final Logger logger = LoggerFactory.getLogger(Communication.class);
 
+    /** 多条连接时重建断开连接的初始间隔，失败后加倍 */
+    private static final long STRIPE_REDIAL_INITIAL_DELAY_MILLIS = 100;
+
+    /** 重建断开连接的最大间隔 */
+    private static final long STRIPE_REDIAL_MAX_DELAY_MILLIS = 10_000;
+
     /** 连接初始化 */
     private final ConnectionInitializer connectionInitializer;
 
     /** 消息订阅 */
     private final PeerConnectionEvents connectionEvents;
 
-    /** 连接缓存 */
-    private final Cache<String, CompletableFuture<PeerConnection>> connectingCache = CacheBuilder.newBuilder()
-            .expireAfterWrite(Duration.ofSeconds(30L)).concurrencyLevel(1).build();
+    /**
+     * 按endpoint索引的主动连接，同一endpoint的并发连接请求共用一个future
+     * 连接失败时立即移除，连接断开后移除，不按时间过期
+     */
+    private final Map<String, CompletableFuture<PeerConnection>> connections = new ConcurrentHashMap<>();
+
+    /** 到同一节点建立的连接数 */
+    private final int connectionsPerPeer;
+
+    /** 多条连接时选择连接的策略 */
+    private final StripeStrategy stripeStrategy;
 
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
@@ -44,8 +61,22 @@ public class Communication {
     public Communication(
             final PeerConnectionEvents connectionEvents,
             final ConnectionInitializer connectionInitializer) {
+        this(connectionEvents, connectionInitializer, 1, StripeStrategy.ROUND_ROBIN);
+    }
+
+    public Communication(
+            final PeerConnectionEvents connectionEvents,
+            final ConnectionInitializer connectionInitializer,
+            final int connectionsPerPeer,
+            final StripeStrategy stripeStrategy) {
+        if (connectionsPerPeer <= 0) {
+            throw new IllegalArgumentException("Connections per peer must be positive: " + connectionsPerPeer);
+        }
         this.connectionEvents = connectionEvents;
         this.connectionInitializer = connectionInitializer;
+        this.connectionsPerPeer = connectionsPerPeer;
+        this.stripeStrategy = stripeStrategy;
+        connectionEvents.subscribeDisconnect(this::onDisconnect);
     }
 
     /**
@@ -57,9 +88,6 @@ public class Communication {
                     new IllegalStateException("Unable to start an already started " + getClass().getSimpleName()));
         }
 
-        //注册回调监听
-        connectionEvents.subscribeConnect(this::dispatchConnect);
-
         //启动连接初始化
         return connectionInitializer
                 .start()
@@ -74,39 +102,53 @@ public class Communication {
                 });
     }
 
+    /**
+     * 按连接初始化配置的期限停止
+     */
     public CompletableFuture<Void> stop() {
+        return stop(connectionInitializer.drainTimeout()).thenApply(_ -> null);
+    }
+
+    /**
+     * 停止，所有连接（包括入站连接）发送DISCONNECT后在期限内写完缓冲区再关闭
+     * 还在建立中的连接直接关闭
+     * @return 期限到达时丢弃的未写出字节数
+     */
+    public CompletableFuture<Long> stop(final Duration drainTimeout) {
         if (!started.get() || !stopped.compareAndSet(false, true)) {
             return CompletableFuture.failedFuture(
                     new IllegalStateException("Illegal attempt to stop " + getClass().getSimpleName()));
         }
 
-        connectingCache.asMap()
-                .values()
-                .forEach((conn) -> {
-                    try {
-                        conn.get().disconnect(DisconnectReason.UNKNOWN);
-                    } catch (Exception e) {
-                        logger.debug("Failed to disconnect.");
-                    }
+        return connectionInitializer.stop(drainTimeout)
+                .whenComplete((_, _) -> {
+                    connections.clear();
+                    connectionEvents.shutdown();
                 });
-        return connectionInitializer.stop();
     }
 
     /**
      * 连接到远程节点
      */
     public CompletableFuture<PeerConnection> connect(final RemotePeer remotePeer) {
-        final CompletableFuture<PeerConnection> completableFuture;
-        try {
-            synchronized (this) {
-                //尝试从缓存获取链接，获取不到就创建一个
-                completableFuture = connectingCache.get(remotePeer.endpoint(),
-                        () -> createConnection(remotePeer));
+        final String endpoint = remotePeer.endpoint();
+        while (true) {
+            CompletableFuture<PeerConnection> existing = connections.get(endpoint);
+            if (existing == null) {
+                //先放入占位future，只有放入成功的线程发起连接
+                final CompletableFuture<PeerConnection> placeholder = new CompletableFuture<>();
+                existing = connections.putIfAbsent(endpoint, placeholder);
+                if (existing == null) {
+                    dial(endpoint, remotePeer, placeholder);
+                    return placeholder;
+                }
             }
-        } catch (final ExecutionException e) {
-            throw new RuntimeException(e);
+            if (!isStale(existing)) {
+                return existing;
+            }
+            //断开事件还未处理完时，由这里移除已失效的连接后重试
+            connections.remove(endpoint, existing);
         }
-        return completableFuture;
     }
 
     /**
@@ -137,13 +179,26 @@ public class Communication {
         connectionEvents.subscribeByCode(code, callback);
     }
 
+    /**
+     * 订阅没有code订阅者的消息
+     */
+    public void subscribeUnhandled(final MessageCallback callback) {
+        connectionEvents.subscribeUnhandled(callback);
+    }
+
+    /**
+     * 注册指定code的请求应答者
+     */
+    public void registerResponder(final int code, final ResponseCallback callback) {
+        connectionEvents.registerResponder(code, callback);
+    }
+
     /**
      * 创建远程连接
      */
     @Nonnull
     private CompletableFuture<PeerConnection> createConnection(final RemotePeer remotePeer) {
-        CompletableFuture<PeerConnection> completableFuture = connectionInitializer
-                .connect(remotePeer)
+        CompletableFuture<PeerConnection> completableFuture = connectAll(remotePeer)
                 .whenComplete((conn, err) -> {
                     if (err != null) {
                         logger.debug("Failed to connect to peer {}", remotePeer.toString());
@@ -162,6 +217,165 @@ public class Communication {
         return completableFuture;
     }
 
+    private void dial(
+            final String endpoint,
+            final RemotePeer remotePeer,
+            final CompletableFuture<PeerConnection> placeholder) {
+        final CompletableFuture<PeerConnection> connectFuture;
+        try {
+            connectFuture = createConnection(remotePeer);
+        } catch (final RuntimeException e) {
+            connections.remove(endpoint, placeholder);
+            placeholder.completeExceptionally(e);
+            return;
+        }
+        connectFuture.whenComplete((connection, err) -> {
+            if (err != null) {
+                //失败的连接立即移除，下次connect重新发起
+                connections.remove(endpoint, placeholder);
+                placeholder.completeExceptionally(err);
+            } else {
+                placeholder.complete(connection);
+            }
+        });
+    }
+
+    /**
+     * 连接全部断开后移除，多条连接时部分断开仍然保留
+     */
+    private void onDisconnect(final PeerConnection connection) {
+        final RemotePeer remotePeer = connection.remotePeer();
+        if (remotePeer == null) {
+            return;
+        }
+        final CompletableFuture<PeerConnection> future = connections.get(remotePeer.endpoint());
+        if (future != null && isStale(future)) {
+            connections.remove(remotePeer.endpoint(), future);
+        }
+    }
+
+    private static boolean isStale(final CompletableFuture<PeerConnection> future) {
+        if (!future.isDone()) {
+            return false;
+        }
+        return future.isCompletedExceptionally() || future.join().disconnected();
+    }
+
+    /**
+     * 按connectionsPerPeer建立连接，多条连接合并为一个StripedPeerConnection
+     * 任意一条失败时关闭其余已建立的连接
+     * 合并后单条连接断开不通知订阅者，而是重新建立；全部断开时以合并的连接通知一次
+     */
+    private CompletableFuture<PeerConnection> connectAll(final RemotePeer remotePeer) {
+        if (connectionsPerPeer == 1) {
+            return connectionInitializer.connect(remotePeer);
+        }
+        final List<CompletableFuture<PeerConnection>> futures = new ArrayList<>(connectionsPerPeer);
+        for (int i = 0; i < connectionsPerPeer; i++) {
+            futures.add(connectionInitializer.connect(remotePeer));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .<PeerConnection>thenApply(_ -> stripe(remotePeer,
+                        futures.stream().map(CompletableFuture::join).toList()))
+                .whenComplete((_, err) -> {
+                    if (err != null) {
+                        futures.forEach(f -> f.thenAccept(PeerConnection::terminateConnection));
+                    }
+                });
+    }
+
+    private StripedPeerConnection stripe(final RemotePeer remotePeer, final List<PeerConnection> stripes) {
+        final StripedPeerConnection striped = new StripedPeerConnection(stripes, stripeStrategy);
+        for (PeerConnection stripe : stripes) {
+            interceptStripe(striped, stripe, remotePeer);
+            checkStripe(striped, stripe, remotePeer);
+        }
+        return striped;
+    }
+
+    /**
+     * 底层连接的断开交给onStripeDisconnect处理，不通知订阅者
+     */
+    private void interceptStripe(
+            final StripedPeerConnection striped,
+            final PeerConnection stripe,
+            final RemotePeer remotePeer) {
+        connectionEvents.interceptDisconnect(stripe, s -> onStripeDisconnect(striped, s, remotePeer));
+    }
+
+    /**
+     * 注册拦截或放入StripedPeerConnection之前就断开的连接不会经过onStripeDisconnect重建，这里补上
+     * 与断开事件重复处理时只会多一次重建，替换失败后关闭
+     */
+    private void checkStripe(
+            final StripedPeerConnection striped,
+            final PeerConnection stripe,
+            final RemotePeer remotePeer) {
+        if (stripe.disconnected()) {
+            onStripeDisconnect(striped, stripe, remotePeer);
+        }
+    }
+
+    /**
+     * 全部连接断开时通知一次断开，否则重新建立断开的连接
+     */
+    private void onStripeDisconnect(
+            final StripedPeerConnection striped,
+            final PeerConnection stripe,
+            final RemotePeer remotePeer) {
+        if (striped.closeIfAllDisconnected(stripe)) {
+            dispatchDisconnect(striped);
+            return;
+        }
+        if (striped.contains(stripe)) {
+            redialStripe(striped, stripe, remotePeer, STRIPE_REDIAL_INITIAL_DELAY_MILLIS);
+        }
+    }
+
+    private void redialStripe(
+            final StripedPeerConnection striped,
+            final PeerConnection stripe,
+            final RemotePeer remotePeer,
+            final long retryDelayMillis) {
+        if (stopped.get() || !striped.replaceable()) {
+            return;
+        }
+        final CompletableFuture<PeerConnection> connectFuture;
+        try {
+            connectFuture = connectionInitializer.connect(remotePeer);
+        } catch (final RuntimeException e) {
+            retryStripe(striped, stripe, remotePeer, retryDelayMillis, e);
+            return;
+        }
+        connectFuture.whenComplete((replacement, err) -> {
+            if (err != null) {
+                retryStripe(striped, stripe, remotePeer, retryDelayMillis, err);
+                return;
+            }
+            replacement.setRemotePeer(remotePeer);
+            interceptStripe(striped, replacement, remotePeer);
+            if (!striped.replace(stripe, replacement)) {
+                replacement.terminateConnection();
+                return;
+            }
+            logger.debug("Re-established a connection to {}", remotePeer);
+            checkStripe(striped, replacement, remotePeer);
+        });
+    }
+
+    private void retryStripe(
+            final StripedPeerConnection striped,
+            final PeerConnection stripe,
+            final RemotePeer remotePeer,
+            final long retryDelayMillis,
+            final Throwable cause) {
+        logger.debug("Failed to re-establish a connection to {}, retry in {}ms", remotePeer, retryDelayMillis, cause);
+        final long nextDelayMillis = Math.min(retryDelayMillis * 2, STRIPE_REDIAL_MAX_DELAY_MILLIS);
+        CompletableFuture.runAsync(
+                () -> redialStripe(striped, stripe, remotePeer, nextDelayMillis),
+                CompletableFuture.delayedExecutor(retryDelayMillis, TimeUnit.MILLISECONDS));
+    }
+
     /**
      * 连接完成后调用注册的回调
      */
@@ -1,11 +1,112 @@
 package org.codenil.comm;
 
+import org.codenil.comm.connections.DispatchMode;
+import org.codenil.comm.connections.StripeStrategy;
+import org.codenil.comm.netty.AllocatorType;
+import org.codenil.comm.serialize.FrameWriter;
+import org.codenil.comm.serialize.Version;
+
+import java.time.Duration;
+
 public class NetworkConfig {
 
+    /** 默认最大帧长度 16MB */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** 默认压缩阈值 1KB */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /** 默认flush阈值 64KB */
+    public static final int DEFAULT_FLUSH_THRESHOLD_BYTES = 64 * 1024;
+
+    /** 默认写缓冲区低水位 512KB */
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 512 * 1024;
+
+    /** 默认写缓冲区高水位 1MB */
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 1024 * 1024;
+
+    /** 默认停止时等待连接写完缓冲区的期限 */
+    public static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(5);
+
+    /** 默认单连接未处理消息上限 */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    /** 默认保留的断开连接数 */
+    public static final int DEFAULT_MAX_DEAD_CONNECTIONS = 1024;
+
     private String bindHost;
 
     private int bindPort;
 
+    /** 单个消息帧允许的最大长度，超过后断开连接 */
+    private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+
+    /** 是否启用Snappy压缩，需要双方在握手时都声明支持 */
+    private boolean compressionEnabled = false;
+
+    /** 帧体小于该长度时不压缩 */
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /** 握手时声明的最高协议版本，最终使用双方都支持的最高版本 */
+    private String protocolVersion = Version.latestVersion();
+
+    /** 连接上未flush的字节数达到该值时立即flush，否则在本轮事件循环结束时flush */
+    private int flushThresholdBytes = DEFAULT_FLUSH_THRESHOLD_BYTES;
+
+    /** 写缓冲区回落到低水位以下时连接恢复可写 */
+    private int writeBufferLowWaterMark = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+
+    /** 写缓冲区超过高水位时连接变为不可写 */
+    private int writeBufferHighWaterMark = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+
+    /** 缓冲区分配策略 */
+    private AllocatorType allocatorType = AllocatorType.POOLED_DIRECT;
+
+    /** 是否允许使用epoll原生传输，不可用时自动回退到NIO */
+    private boolean nativeTransportEnabled = true;
+
+    /** 接收连接的线程数 */
+    private int bossThreads = 1;
+
+    /** IO线程数，默认为CPU核数 */
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    /** 回调执行方式 */
+    private DispatchMode dispatchMode = DispatchMode.EVENT_LOOP;
+
+    /** STRIPED模式下的回调线程数 */
+    private int dispatchThreads = Runtime.getRuntime().availableProcessors();
+
+    /** VIRTUAL_THREAD模式下单个连接未处理完的消息上限，达到后暂停读取该连接 */
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /** 主动连接时到同一节点建立的连接数，大于1时发送分散到多条连接上 */
+    private int connectionsPerPeer = 1;
+
+    /** 多条连接时选择连接的策略 */
+    private StripeStrategy stripeStrategy = StripeStrategy.ROUND_ROBIN;
+
+    /** 是否自动重连断开的主动连接 */
+    private boolean reconnectEnabled = false;
+
+    /** 第一次重连前的等待时间，之后每次翻倍 */
+    private Duration reconnectInitialDelay = Duration.ofSeconds(1);
+
+    /** 重连等待时间的上限 */
+    private Duration reconnectMaxDelay = Duration.ofMinutes(1);
+
+    /** 保活空闲时间和等待PONG超时的下限，低延迟链路上按RTT缩短到不低于此值；连接建立后的首次RTT采样也在此时 */
+    private Duration keepAliveMinInterval = Duration.ofSeconds(1);
+
+    /** 保活空闲时间和等待PONG超时的上限，还没有测得RTT时使用；也是RTT的采样间隔，不论连接是否繁忙 */
+    private Duration keepAliveMaxInterval = Duration.ofSeconds(15);
+
+    /** 停止时等待连接写完缓冲区的期限，超过后丢弃未写出的数据 */
+    private Duration drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+    /** 断开连接表的容量，超出后淘汰最早断开的节点，被淘汰的节点不再重连 */
+    private int maxDeadConnections = DEFAULT_MAX_DEAD_CONNECTIONS;
+
     public String bindHost() {
         return bindHost;
     }
@@ -21,4 +122,195 @@ public class NetworkConfig {
     public void setBindPort(int bindPort) {
         this.bindPort = bindPort;
     }
+
+    public int maxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * 不能超过1.0帧长度字段能表示的范围FrameWriter.LENGTH_MASK
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        if (maxFrameLength <= 0 || maxFrameLength > FrameWriter.LENGTH_MASK) {
+            throw new IllegalArgumentException("Max frame length must be between 1 and "
+                    + FrameWriter.LENGTH_MASK + ": " + maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public boolean compressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public String protocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(String protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public int flushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    public void setFlushThresholdBytes(int flushThresholdBytes) {
+        this.flushThresholdBytes = flushThresholdBytes;
+    }
+
+    public int writeBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public int writeBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public AllocatorType allocatorType() {
+        return allocatorType;
+    }
+
+    public void setAllocatorType(AllocatorType allocatorType) {
+        this.allocatorType = allocatorType;
+    }
+
+    public boolean nativeTransportEnabled() {
+        return nativeTransportEnabled;
+    }
+
+    public void setNativeTransportEnabled(boolean nativeTransportEnabled) {
+        this.nativeTransportEnabled = nativeTransportEnabled;
+    }
+
+    public int bossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int workerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public DispatchMode dispatchMode() {
+        return dispatchMode;
+    }
+
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        this.dispatchMode = dispatchMode;
+    }
+
+    public int dispatchThreads() {
+        return dispatchThreads;
+    }
+
+    public void setDispatchThreads(int dispatchThreads) {
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int connectionsPerPeer() {
+        return connectionsPerPeer;
+    }
+
+    public void setConnectionsPerPeer(int connectionsPerPeer) {
+        this.connectionsPerPeer = connectionsPerPeer;
+    }
+
+    public StripeStrategy stripeStrategy() {
+        return stripeStrategy;
+    }
+
+    public void setStripeStrategy(StripeStrategy stripeStrategy) {
+        this.stripeStrategy = stripeStrategy;
+    }
+
+    public boolean reconnectEnabled() {
+        return reconnectEnabled;
+    }
+
+    public void setReconnectEnabled(boolean reconnectEnabled) {
+        this.reconnectEnabled = reconnectEnabled;
+    }
+
+    public Duration reconnectInitialDelay() {
+        return reconnectInitialDelay;
+    }
+
+    public void setReconnectInitialDelay(Duration reconnectInitialDelay) {
+        this.reconnectInitialDelay = reconnectInitialDelay;
+    }
+
+    public Duration reconnectMaxDelay() {
+        return reconnectMaxDelay;
+    }
+
+    public void setReconnectMaxDelay(Duration reconnectMaxDelay) {
+        this.reconnectMaxDelay = reconnectMaxDelay;
+    }
+
+    public int maxDeadConnections() {
+        return maxDeadConnections;
+    }
+
+    public void setMaxDeadConnections(int maxDeadConnections) {
+        this.maxDeadConnections = maxDeadConnections;
+    }
+
+    public Duration keepAliveMinInterval() {
+        return keepAliveMinInterval;
+    }
+
+    public void setKeepAliveMinInterval(Duration keepAliveMinInterval) {
+        this.keepAliveMinInterval = keepAliveMinInterval;
+    }
+
+    public Duration keepAliveMaxInterval() {
+        return keepAliveMaxInterval;
+    }
+
+    public void setKeepAliveMaxInterval(Duration keepAliveMaxInterval) {
+        this.keepAliveMaxInterval = keepAliveMaxInterval;
+    }
+
+    public Duration drainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(Duration drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
 }
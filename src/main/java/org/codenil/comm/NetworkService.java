@@ -3,19 +3,25 @@ package org.codenil.comm;
 import org.codenil.comm.callback.ConnectCallback;
 import org.codenil.comm.callback.DisconnectCallback;
 import org.codenil.comm.callback.MessageCallback;
+import org.codenil.comm.callback.ResponseCallback;
 import org.codenil.comm.connections.*;
 import org.codenil.comm.message.DisconnectReason;
 import org.codenil.comm.message.Message;
+import org.codenil.comm.message.RawMessage;
+import org.codenil.comm.netty.NettyBroadcaster;
 import org.codenil.comm.netty.NettyConnectionInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class NetworkService {
 
@@ -24,18 +30,44 @@ public class NetworkService {
     private final CountDownLatch shutdown = new CountDownLatch(1);
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
-    private final Map<String, PeerConnection> aliveConnections = new ConcurrentHashMap<>();
-    private final Map<String, PeerConnection> deadConnections = new ConcurrentHashMap<>();
+    /** 存活的连接，按pkiId和句柄索引 */
+    private final ConnectionRegistry aliveConnections = new ConnectionRegistry();
+    /** 断开的连接，按断开顺序淘汰最早的节点 */
+    private final Map<String, PeerConnection> deadConnections;
+
+    /** 主动调用disconnect断开的节点，不自动重连 */
+    private final Set<String> manualDisconnects = ConcurrentHashMap.newKeySet();
     private final Clock clock = Clock.systemUTC();
 
     private final Communication communication;
 
+    /** 停止时等待连接写完缓冲区的期限 */
+    private final Duration drainTimeout;
+
+    /** 未启用重连时为null */
+    private final ReconnectManager reconnectManager;
+
     public NetworkService(
             final NetworkConfig networkConfig,
             final String selfIdentifier) {
-        PeerConnectionEvents connectionEvents = new PeerConnectionEvents();
-        ConnectionInitializer connectionInitializer = new NettyConnectionInitializer(networkConfig, selfIdentifier, connectionEvents);
-        this.communication = new Communication(connectionEvents, connectionInitializer);
+        PeerConnectionEvents connectionEvents = new PeerConnectionEvents(
+                OrderedDispatcher.create(networkConfig.dispatchMode(), networkConfig.dispatchThreads(),
+                        networkConfig.maxInFlight()));
+        NettyConnectionInitializer connectionInitializer = new NettyConnectionInitializer(networkConfig, selfIdentifier, connectionEvents);
+        this.communication = new Communication(connectionEvents, connectionInitializer,
+                networkConfig.connectionsPerPeer(), networkConfig.stripeStrategy());
+        this.deadConnections = boundedMap(networkConfig.maxDeadConnections());
+        this.drainTimeout = networkConfig.drainTimeout();
+        this.reconnectManager = networkConfig.reconnectEnabled()
+                ? new ReconnectManager(communication::connect,
+                        remotePeer -> deadConnections.containsKey(remotePeer.pkiId()),
+                        connectionInitializer.workers(),
+                        networkConfig.reconnectInitialDelay(), networkConfig.reconnectMaxDelay())
+                : null;
+
+        //连接表维护只注册一次，不依赖调用方是否订阅连接事件
+        communication.subscribeConnect(this::onConnect);
+        communication.subscribeDisconnect(this::onDisconnect);
     }
 
     /**
@@ -52,12 +84,23 @@ public class NetworkService {
     }
 
     /**
-     * 停止网络服务
+     * 停止网络服务，在NetworkConfig.drainTimeout内等待连接写完缓冲区
      */
     public CompletableFuture<Void> stop() {
+        return stop(drainTimeout).thenApply(_ -> null);
+    }
+
+    /**
+     * 停止网络服务：不再接受新连接，向所有连接发送DISCONNECT，等待写缓冲区清空或超过期限后关闭
+     * @return 期限到达时丢弃的未写出字节数
+     */
+    public CompletableFuture<Long> stop(final Duration drainTimeout) {
         if (stopped.compareAndSet(false, true)) {
             logger.info("Stopping Network.");
-            CompletableFuture<Void> stop = communication.stop();
+            if (Objects.nonNull(reconnectManager)) {
+                reconnectManager.stop();
+            }
+            CompletableFuture<Long> stop = communication.stop(drainTimeout);
             return stop.whenComplete((result, throwable) -> {
                 shutdown.countDown();
             });
@@ -80,6 +123,7 @@ public class NetworkService {
     public void disconnect(final String pkiId, final DisconnectReason reason) {
         PeerConnection connection = aliveConnections.get(pkiId);
         if(Objects.nonNull(connection)) {
+            manualDisconnects.add(pkiId);
             try {
                 connection.disconnect(reason);
             } catch (Exception e) {
@@ -92,74 +136,204 @@ public class NetworkService {
      * 发送消息
      * @param pkiId 远程节点的PKIID
      * @param message 发送的信息
+     * @return 消息写入socket后完成，没有到该节点的连接时以异常完成
      */
-    public void send(final String pkiId, final Message message) {
+    public CompletableFuture<Void> send(final String pkiId, final Message message) {
         try {
             PeerConnection connection = aliveConnections.get(pkiId);
-            if (Objects.nonNull(connection)) {
-                connection.send(message);
+            if (Objects.isNull(connection)) {
+                return CompletableFuture.failedFuture(
+                        new IllegalStateException("No connection to peer " + pkiId));
             }
+            return connection.send(message);
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 按句柄发送消息，省去按pkiId查找
+     * @param handle handleOf返回的句柄，节点断开后句柄失效，重新连接的节点会分配新句柄
+     * @return 消息写入socket后完成，句柄无效时以异常完成
+     */
+    public CompletableFuture<Void> send(final int handle, final Message message) {
+        try {
+            PeerConnection connection = aliveConnections.get(handle);
+            if (Objects.isNull(connection)) {
+                return CompletableFuture.failedFuture(
+                        new IllegalStateException("No connection for handle " + handle));
+            }
+            return connection.send(message);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 节点的连接句柄，没有到该节点的连接时返回ConnectionRegistry.NO_HANDLE
+     * 同一节点的连接被替换时句柄不变，节点断开后句柄失效，不会指向之后注册的节点
+     */
+    public int handleOf(final String pkiId) {
+        return aliveConnections.handleOf(pkiId);
+    }
+
+    /**
+     * 按句柄获取连接，句柄无效时返回null
+     */
+    public PeerConnection connection(final int handle) {
+        return aliveConnections.get(handle);
+    }
+
+    /**
+     * 发送请求并等待对端应答者的响应
+     * @param timeout 超时未收到响应时future以TimeoutException完成
+     * @return 对端的响应，没有到该节点的连接时以异常完成
+     */
+    public CompletableFuture<RawMessage> request(final String pkiId, final Message message, final Duration timeout) {
+        PeerConnection connection = aliveConnections.get(pkiId);
+        if (Objects.isNull(connection)) {
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("No connection to peer " + pkiId));
+        }
+        return connection.request(message, timeout);
+    }
+
+    /**
+     * 广播消息给所有满足条件的存活连接，消息只编码一次
+     * 多条连接的节点按StripeStrategy选择其中一条
+     * @param filter 选择要发送的连接
+     * @return 所有连接写入socket后完成，任意一个失败时以异常完成
+     */
+    public CompletableFuture<Void> broadcast(final Message message, final Predicate<PeerConnection> filter) {
+        final List<PeerConnection> targets = new ArrayList<>(aliveConnections.size());
+        aliveConnections.forEach(connection -> {
+            if (!connection.disconnected() && filter.test(connection)) {
+                targets.add(connection instanceof StripedPeerConnection striped
+                        ? striped.connectionFor(message)
+                        : connection);
+            }
+        });
+        if (targets.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return NettyBroadcaster.broadcast(message, targets);
+    }
+
+    /**
+     * 尝试发送消息，连接不存在或写缓冲区已超过高水位时不发送
+     * @return 消息是否已进入发送队列
+     */
+    public boolean trySend(final String pkiId, final Message message) {
+        PeerConnection connection = aliveConnections.get(pkiId);
+        if (Objects.isNull(connection) || connection.disconnected() || !connection.isWritable()) {
+            return false;
+        }
+        try {
+            connection.send(message);
+            return true;
+        } catch (Exception e) {
+            logger.debug("Failed to send message to {}", pkiId, e);
+            return false;
         }
     }
 
     /**
      * 订阅消息
+     * 回调按DispatchMode执行，同一节点的消息保持顺序，不同节点的消息可能并行
      */
     public void subscribeMessage(final MessageCallback callback) {
         //订阅消息，全量订阅
-        communication.subscribeMessage(message -> {
-            synchronized (this) {
-                callback.onMessage(message);
-            }
-        });
+        communication.subscribeMessage(callback);
     }
 
     /**
      * 订阅连接
      */
     public void subscribeConnect(final ConnectCallback callback) {
-        //订阅连接成功
-        communication.subscribeConnect(newConnection -> {
-            synchronized (this) {
-                callback.onConnect(newConnection);
-                aliveConnections.put(newConnection.pkiId(), newConnection);
-                deadConnections.remove(newConnection.pkiId(), newConnection);
-            }
-        });
+        communication.subscribeConnect(callback);
     }
 
     /**
      * 订阅断开
      */
     public void subscribeDisconnect(final DisconnectCallback callback) {
-        //订阅断开连接
-        communication.subscribeDisconnect(connection -> {
-            synchronized (this) {
-                callback.onDisconnect(connection);
-                aliveConnections.remove(connection.pkiId(), connection);
-                deadConnections.put(connection.pkiId(), connection);
-            }
-        });
+        communication.subscribeDisconnect(callback);
     }
 
     /**
      * 订阅指定code的消息
      */
     public void subscribeMessageByCode(final int code, final MessageCallback callback) {
-        communication.subscribeByCode(code, message -> {
-            synchronized (this) {
-                callback.onMessage(message);
-            }
-        });
+        communication.subscribeByCode(code, callback);
+    }
+
+    /**
+     * 订阅没有code订阅者的消息，可用于记录或拒绝未知类型的消息
+     */
+    public void subscribeUnhandled(final MessageCallback callback) {
+        communication.subscribeUnhandled(callback);
+    }
+
+    /**
+     * 注册指定code的请求应答者，应答者的返回值以相同的requestId回复给请求方
+     * 有应答者的code不再分发给按code订阅者
+     */
+    public void registerResponder(final int code, final ResponseCallback callback) {
+        communication.registerResponder(code, callback);
     }
 
     /**
-     * 获取所有存活的连接
+     * 获取所有存活的连接，每次调用复制一份，频繁遍历时使用forEachAlive
      */
     public List<PeerConnection> aliveConnections() {
-        return new ArrayList<>(aliveConnections.values());
+        final List<PeerConnection> connections = new ArrayList<>(aliveConnections.size());
+        aliveConnections.forEach(connections::add);
+        return connections;
+    }
+
+    /**
+     * 遍历所有存活的连接，不复制连接表
+     */
+    public void forEachAlive(final Consumer<? super PeerConnection> action) {
+        aliveConnections.forEach(action);
+    }
+
+    private void onConnect(final PeerConnection connection) {
+        if (Objects.isNull(connection.remotePeer())) {
+            return;
+        }
+        aliveConnections.register(connection.pkiId(), connection);
+        deadConnections.remove(connection.pkiId());
+        manualDisconnects.remove(connection.pkiId());
+    }
+
+    private void onDisconnect(final PeerConnection connection) {
+        if (Objects.isNull(connection.remotePeer())) {
+            return;
+        }
+        //多条连接时只有全部断开才移除
+        final PeerConnection alive = aliveConnections.get(connection.pkiId());
+        if (Objects.isNull(alive)) {
+            deadConnections.put(connection.pkiId(), connection);
+        } else if ((alive == connection || alive.disconnected())
+                && aliveConnections.remove(connection.pkiId(), alive)) {
+            deadConnections.put(connection.pkiId(), alive);
+            if (Objects.nonNull(reconnectManager) && !manualDisconnects.remove(connection.pkiId())) {
+                reconnectManager.reconnect(alive.remotePeer());
+            }
+        }
+    }
+
+    /**
+     * 超出容量后淘汰最早放入的节点
+     */
+    private static Map<String, PeerConnection> boundedMap(final int capacity) {
+        return Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, PeerConnection> eldest) {
+                return size() > capacity;
+            }
+        });
     }
 
 }
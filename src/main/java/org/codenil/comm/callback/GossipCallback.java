@@ -0,0 +1,14 @@
+package org.codenil.comm.callback;
+
+import org.codenil.comm.connections.PeerConnection;
+import org.codenil.comm.gossip.GossipMessage;
+
+@FunctionalInterface
+public interface GossipCallback {
+
+    /**
+     * 每条gossip消息只回调一次，重复收到的副本已被丢弃
+     * @param connection 收到这条消息的连接
+     */
+    void onGossip(final PeerConnection connection, final GossipMessage message);
+}
@@ -0,0 +1,12 @@
+package org.codenil.comm.callback;
+
+import org.codenil.comm.connections.PeerConnection;
+
+/**
+ * 连接可写状态变化回调，在连接的事件循环线程中调用
+ * 写缓冲区超过高水位时writable为false，回落到低水位以下时为true
+ */
+@FunctionalInterface
+public interface WritabilityCallback {
+    void onWritabilityChanged(final PeerConnection connection, final boolean writable);
+}
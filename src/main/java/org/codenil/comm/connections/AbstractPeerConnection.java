@@ -1,13 +1,25 @@
 package org.codenil.comm.connections;
 
 import io.netty.channel.ChannelHandler;
+import io.netty.util.Timeout;
 import org.codenil.comm.RemotePeer;
+import org.codenil.comm.callback.WritabilityCallback;
 import org.codenil.comm.message.Message;
+import org.codenil.comm.message.RawMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractPeerConnection implements PeerConnection {
 
@@ -19,24 +31,138 @@ public abstract class AbstractPeerConnection implements PeerConnection {
 
     protected final AtomicBoolean terminatedImmediately = new AtomicBoolean(false);
 
+    private final AtomicLong correlationIds = new AtomicLong();
+
     private RemotePeer remotePeer;
 
+    /** remotePeer的pkiId，发送和查找时频繁读取，设置remotePeer时缓存 */
+    private volatile String pkiId;
+
+    /** 可写状态订阅 */
+    private final Subscribers<WritabilityCallback> writabilitySubscribers = Subscribers.create(true);
+
+    /** 等待响应的请求，按correlationId索引 */
+    private final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+
+    /** 往返时延统计 */
+    private final RttStats rttStats = new RttStats();
+
+    /** 所有连接共用的超时服务，驱动请求超时 */
+    private final TimeoutService timeouts;
+
     protected AbstractPeerConnection(
-            final String remoteIdentifier) {
+            final String remoteIdentifier,
+            final TimeoutService timeouts) {
         this.remoteIdentifier = remoteIdentifier;
+        this.timeouts = timeouts;
+    }
+
+    @Override
+    public RttStats rttStats() {
+        return rttStats;
     }
 
     @Override
     public String pkiId() {
-        if(Objects.isNull(remotePeer)) {
+        final String id = pkiId;
+        if(Objects.isNull(id)) {
             throw new IllegalStateException("connection not complated yet");
         }
-        return remotePeer.pkiId();
+        return id;
+    }
+
+    @Override
+    public CompletableFuture<Void> send(final Message message) {
+        return doSendMessage(message);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAll(final Collection<? extends Message> messages) {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return doSendMessages(messages);
+    }
+
+    /**
+     * 发送请求并等待对端响应，请求使用新的correlationId，原消息的id被忽略
+     */
+    @Override
+    public CompletableFuture<RawMessage> request(final Message message, final Duration timeout) {
+        final long correlationId = nextCorrelationId();
+        final RawMessage request = RawMessage.copyOf(message);
+        request.setRequestId(null);
+        request.setCorrelationId(correlationId);
+        request.setResponse(false);
+
+        final CompletableFuture<RawMessage> response = new CompletableFuture<>();
+        final PendingRequest pending = new PendingRequest(response);
+        pendingRequests.put(correlationId, pending);
+        try {
+            pending.timeout = timeouts.schedule(() -> {
+                if (pendingRequests.remove(correlationId, pending)) {
+                    response.completeExceptionally(new TimeoutException(
+                            "Request " + correlationId + " timed out after " + timeout.toMillis() + "ms"));
+                }
+            }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            failRequest(correlationId, e);
+            return response;
+        }
+
+        doSendMessage(request).whenComplete((_, error) -> {
+            if (error != null) {
+                failRequest(correlationId, error);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * 用收到的响应完成对应的请求，返回是否有请求在等待它
+     * 响应复制到堆内，回调中可以继续持有
+     */
+    public boolean handleResponse(final RawMessage message) {
+        final PendingRequest pending = pendingRequests.remove(message.correlationId());
+        if (pending == null) {
+            return false;
+        }
+        pending.cancelTimeout();
+        pending.response.complete(RawMessage.copyOf(message));
+        return true;
+    }
+
+    /**
+     * 连接关闭后，所有未完成的请求以异常结束
+     */
+    protected void failPendingRequests(final Throwable cause) {
+        for (Long correlationId : pendingRequests.keySet()) {
+            failRequest(correlationId, cause);
+        }
+    }
+
+    private void failRequest(final long correlationId, final Throwable cause) {
+        final PendingRequest pending = pendingRequests.remove(correlationId);
+        if (pending != null) {
+            pending.cancelTimeout();
+            pending.response.completeExceptionally(cause);
+        }
+    }
+
+    @Override
+    public void subscribeWritabilityChanged(final WritabilityCallback callback) {
+        writabilitySubscribers.subscribe(callback);
+    }
+
+    public void dispatchWritabilityChanged(final boolean writable) {
+        writabilitySubscribers.forEach(s -> s.onWritabilityChanged(this, writable));
     }
 
     @Override
-    public void send(final Message message) {
-        doSendMessage(message);
+    public long nextCorrelationId() {
+        long id = correlationIds.incrementAndGet();
+        //0表示没有id，回绕时跳过
+        return id != 0 ? id : correlationIds.incrementAndGet();
     }
 
     @Override
@@ -57,6 +183,7 @@ public abstract class AbstractPeerConnection implements PeerConnection {
     @Override
     public void setRemotePeer(RemotePeer remotePeer) {
         this.remotePeer = remotePeer;
+        this.pkiId = Objects.isNull(remotePeer) ? null : remotePeer.pkiId();
     }
 
     @Override
@@ -64,11 +191,35 @@ public abstract class AbstractPeerConnection implements PeerConnection {
         doReplaceHandler(name, newHandler);
     }
 
-    protected abstract void doSendMessage(final Message message);
+    protected abstract CompletableFuture<Void> doSendMessage(final Message message);
+
+    protected abstract CompletableFuture<Void> doSendMessages(final Collection<? extends Message> messages);
 
     protected abstract void doReplaceHandler(String name, ChannelHandler newHandler);
 
     protected abstract void closeConnection();
 
     protected abstract void closeConnectionImmediately();
+
+    /**
+     * 等待响应的请求及其超时任务
+     */
+    private static final class PendingRequest {
+
+        private final CompletableFuture<RawMessage> response;
+
+        /** 注册后才设置，超时任务触发前可能已被响应取消 */
+        private volatile Timeout timeout;
+
+        private PendingRequest(final CompletableFuture<RawMessage> response) {
+            this.response = response;
+        }
+
+        private void cancelTimeout() {
+            final Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
 }
@@ -0,0 +1,47 @@
+package org.codenil.comm.connections;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * 按消息code索引的路由表
+ * 常用的小code直接用数组下标查找，不装箱；超出范围的code放在map中
+ */
+public class CodeTable<T> {
+
+    /** 直接索引的code范围 [0, DIRECT_CODES) */
+    public static final int DIRECT_CODES = 256;
+
+    private final AtomicReferenceArray<T> direct = new AtomicReferenceArray<>(DIRECT_CODES);
+
+    private final Map<Integer, T> overflow = new ConcurrentHashMap<>();
+
+    public T get(final int code) {
+        if (code >= 0 && code < DIRECT_CODES) {
+            return direct.get(code);
+        }
+        return overflow.isEmpty() ? null : overflow.get(code);
+    }
+
+    public void set(final int code, final T value) {
+        if (code >= 0 && code < DIRECT_CODES) {
+            direct.set(code, value);
+        } else {
+            overflow.put(code, value);
+        }
+    }
+
+    public T computeIfAbsent(final int code, final IntFunction<T> factory) {
+        if (code < 0 || code >= DIRECT_CODES) {
+            return overflow.computeIfAbsent(code, factory::apply);
+        }
+        final T existing = direct.get(code);
+        if (existing != null) {
+            return existing;
+        }
+        final T created = factory.apply(code);
+        return direct.compareAndSet(code, null, created) ? created : direct.get(code);
+    }
+}
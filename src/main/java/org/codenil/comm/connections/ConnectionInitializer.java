@@ -1,15 +1,35 @@
 package org.codenil.comm.connections;
 
+import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.RemotePeer;
 
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 
 public interface ConnectionInitializer {
 
     CompletableFuture<InetSocketAddress> start();
 
-    CompletableFuture<Void> stop();
+    /**
+     * 停止时等待连接写完缓冲区的期限
+     */
+    default Duration drainTimeout() {
+        return NetworkConfig.DEFAULT_DRAIN_TIMEOUT;
+    }
+
+    /**
+     * 按drainTimeout优雅停止
+     */
+    default CompletableFuture<Void> stop() {
+        return stop(drainTimeout()).thenApply(_ -> null);
+    }
+
+    /**
+     * 优雅停止：不再接受新连接，向所有连接发送DISCONNECT，等待写缓冲区清空或超过期限后关闭连接，再停止事件循环
+     * @return 期限到达时仍未写出、随连接关闭丢弃的字节数
+     */
+    CompletableFuture<Long> stop(Duration drainTimeout);
 
     CompletableFuture<PeerConnection> connect(RemotePeer remotePeer);
 }
@@ -0,0 +1,174 @@
+package org.codenil.comm.connections;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 存活连接表，每个节点分配一个int句柄
+ *
+ * 句柄低SLOT_BITS位是槽位下标，高位是该槽位的代数；连接按槽位存放在数组中，按句柄查找和遍历都不分配对象，也不复制连接列表
+ * 同一节点替换连接时句柄不变；节点移除后槽位先进先出地回收，再次分配时代数加一，旧句柄查找返回null，不会指向其他节点
+ * 代数在 2^(31 - SLOT_BITS) 次复用后回绕，持有句柄的调用方仍应在节点断开时丢弃句柄
+ * 注册和移除加锁，查找和遍历不加锁；槽位中同时存放节点标识和句柄，查找时校验
+ */
+public class ConnectionRegistry {
+
+    /** 没有句柄 */
+    public static final int NO_HANDLE = -1;
+
+    /** 槽位下标占用的位数，最多容纳 2^SLOT_BITS 个节点 */
+    public static final int SLOT_BITS = 20;
+
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    /** 代数占用句柄除符号位外的剩余位，句柄始终非负 */
+    private static final int GENERATION_MASK = Integer.MAX_VALUE >>> SLOT_BITS;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** 节点标识到句柄 */
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>();
+
+    /** 回收的槽位，按回收顺序重新分配，只在持有锁时访问 */
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+    /** 各槽位最近一次分配的代数，只在持有锁时访问 */
+    private int[] generations = new int[INITIAL_CAPACITY];
+
+    /** 按槽位存放的连接，扩容时整体替换 */
+    private volatile AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /** 已分配过的最大槽位 + 1 */
+    private volatile int highWater;
+
+    private volatile int size;
+
+    /**
+     * 注册节点的连接，已注册的节点替换连接并沿用原句柄
+     * @return 节点的句柄
+     */
+    public synchronized int register(final String pkiId, final PeerConnection connection) {
+        final Integer existing = handles.get(pkiId);
+        if (existing != null) {
+            slots.set(existing & SLOT_MASK, new Entry(pkiId, existing, connection));
+            return existing;
+        }
+        final int slot;
+        if (freeSlots.isEmpty()) {
+            slot = highWater;
+            if (slot > SLOT_MASK) {
+                throw new IllegalStateException("Too many connections: " + slot);
+            }
+            ensureCapacity(slot + 1);
+            highWater = slot + 1;
+        } else {
+            slot = freeSlots.poll();
+        }
+        final int generation = (generations[slot] + 1) & GENERATION_MASK;
+        generations[slot] = generation;
+        final int handle = generation << SLOT_BITS | slot;
+        slots.set(slot, new Entry(pkiId, handle, connection));
+        handles.put(pkiId, handle);
+        size++;
+        return handle;
+    }
+
+    /**
+     * 节点当前的连接是expected时移除，回收槽位
+     */
+    public synchronized boolean remove(final String pkiId, final PeerConnection expected) {
+        final Integer handle = handles.get(pkiId);
+        if (handle == null || slots.get(handle & SLOT_MASK).connection() != expected) {
+            return false;
+        }
+        handles.remove(pkiId);
+        slots.set(handle & SLOT_MASK, null);
+        freeSlots.add(handle & SLOT_MASK);
+        size--;
+        return true;
+    }
+
+    /**
+     * 按句柄查找，句柄无效或已回收时返回null
+     */
+    public PeerConnection get(final int handle) {
+        final Entry entry = entry(handle);
+        return entry == null ? null : entry.connection();
+    }
+
+    /**
+     * 按节点标识查找，未注册时返回null
+     */
+    public PeerConnection get(final String pkiId) {
+        final Integer handle = handles.get(pkiId);
+        if (handle == null) {
+            return null;
+        }
+        //读取句柄后节点可能被移除，槽位又分配给了其他节点，此时代数不同
+        final Entry entry = entry(handle);
+        return entry != null && entry.pkiId().equals(pkiId) ? entry.connection() : null;
+    }
+
+    /**
+     * 节点的句柄，未注册时返回NO_HANDLE
+     */
+    public int handleOf(final String pkiId) {
+        final Integer handle = handles.get(pkiId);
+        return handle == null ? NO_HANDLE : handle;
+    }
+
+    /**
+     * 遍历所有连接，不复制连接表；遍历期间的注册和移除可能可见也可能不可见
+     */
+    public void forEach(final Consumer<? super PeerConnection> action) {
+        final AtomicReferenceArray<Entry> current = slots;
+        final int limit = Math.min(highWater, current.length());
+        for (int i = 0; i < limit; i++) {
+            final Entry entry = current.get(i);
+            if (entry != null) {
+                action.accept(entry.connection());
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 槽位中的句柄与查找的句柄一致时返回条目，包括代数
+     */
+    private Entry entry(final int handle) {
+        if (handle < 0) {
+            return null;
+        }
+        final AtomicReferenceArray<Entry> current = slots;
+        final int slot = handle & SLOT_MASK;
+        if (slot >= current.length()) {
+            return null;
+        }
+        final Entry entry = current.get(slot);
+        return entry != null && entry.handle() == handle ? entry : null;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        final AtomicReferenceArray<Entry> current = slots;
+        if (capacity <= current.length()) {
+            return;
+        }
+        final int length = Math.min(Math.max(capacity, current.length() * 2), SLOT_MASK + 1);
+        final AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        generations = Arrays.copyOf(generations, length);
+        slots = grown;
+    }
+
+    private record Entry(String pkiId, int handle, PeerConnection connection) {
+    }
+}
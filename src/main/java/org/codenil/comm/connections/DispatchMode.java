@@ -0,0 +1,14 @@
+package org.codenil.comm.connections;
+
+/**
+ * 连接事件和消息回调的执行方式
+ */
+public enum DispatchMode {
+    /** 直接在连接所在的事件循环线程中执行，回调不能阻塞 */
+    EVENT_LOOP,
+    /** 按节点分配到固定的串行线程执行，同一节点的事件保持顺序，不同节点并行 */
+    STRIPED,
+    /** 每个连接一个串行队列，由虚拟线程执行，回调可以阻塞 */
+    VIRTUAL_THREAD,
+    ;
+}
@@ -2,40 +2,127 @@ package org.codenil.comm.connections;
 
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.Timeout;
 
 import org.codenil.comm.message.DisconnectReason;
+import org.codenil.comm.message.Message;
+import org.codenil.comm.message.MessageCodes;
 import org.codenil.comm.message.PingMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * 连接保活，空闲时间和等待PONG的超时按测得的RTT调整
+ *
+ * 连接在空闲时间内没有收到PING以外的消息时发送带时间戳的PING，等待PONG超时且期间没有收到任何消息时断开
+ * RTT采样与空闲检测分开：不论是否有数据往来，建立连接后最小间隔时采样一次，之后每个最大间隔采样一次，繁忙的连接也有样本
+ * 超时估算值 rto = srtt + 4 * rttvar，空闲时间取 IDLE_RTO_MULTIPLE * rto，等待PONG的超时取 PONG_RTO_MULTIPLE * rto
+ * 两者都限制在 [最小间隔, 最大间隔] 内，还没有RTT样本时都取最大间隔
+ * 检测任务登记在共用的超时服务中，每个连接同一时刻只有一个
+ */
 public class KeepAlive extends ChannelDuplexHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(KeepAlive.class);
 
+    /** 空闲时间是rto的倍数 */
+    private static final long IDLE_RTO_MULTIPLE = 50;
+
+    /** 等待PONG的超时是rto的倍数 */
+    private static final long PONG_RTO_MULTIPLE = 4;
+
     private final AtomicBoolean waitingForPong;
 
     private final PeerConnection connection;
 
+    private final TimeoutService timeouts;
+
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+
+    /** 以下字段只在事件循环中访问 */
+    private long lastReadNanos;
+    /** 最近一次收到PING以外消息的时间，对端的PING不推迟本端的PING，两端各自测量RTT */
+    private long lastActiveNanos;
+    private long pingSentNanos;
+    /** 下一次采样RTT的时间 */
+    private long nextSampleNanos;
+    private Timeout check;
+
     public KeepAlive(
             final PeerConnection connection,
-            final AtomicBoolean waitingForPong) {
+            final AtomicBoolean waitingForPong,
+            final TimeoutService timeouts,
+            final Duration minInterval,
+            final Duration maxInterval) {
         this.connection = connection;
         this.waitingForPong = waitingForPong;
+        this.timeouts = timeouts;
+        this.minIntervalNanos = minInterval.toNanos();
+        this.maxIntervalNanos = Math.max(minIntervalNanos, maxInterval.toNanos());
+    }
+
+    /**
+     * 当前的空闲时间
+     */
+    public long idleTimeoutNanos() {
+        return adapt(IDLE_RTO_MULTIPLE);
+    }
+
+    /**
+     * 当前等待PONG的超时
+     */
+    public long pongTimeoutNanos() {
+        return adapt(PONG_RTO_MULTIPLE);
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) {
+        lastReadNanos = System.nanoTime();
+        lastActiveNanos = lastReadNanos;
+        nextSampleNanos = lastReadNanos + minIntervalNanos;
+        schedule(ctx, Math.min(idleTimeoutNanos(), minIntervalNanos));
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) {
+        cancel();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        cancel();
+        super.channelInactive(ctx);
     }
 
     @Override
-    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) {
-        if (!(evt instanceof IdleStateEvent
-                && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE)) {
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        lastReadNanos = System.nanoTime();
+        if (!(msg instanceof Message message && message.code() == MessageCodes.PING)) {
+            lastActiveNanos = lastReadNanos;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    private void check(final ChannelHandlerContext ctx) {
+        check = null;
+        if (!ctx.channel().isActive()) {
             return;
         }
+        final long now = System.nanoTime();
 
         if (waitingForPong.get()) {
-            logger.debug("PONG never received, disconnecting from peer.");
+            //PONG可能排在大量数据之后，期间收到任何消息都说明对端还活着
+            final long remaining = Math.max(pingSentNanos, lastReadNanos) + pongTimeoutNanos() - now;
+            if (remaining > 0) {
+                schedule(ctx, remaining);
+                return;
+            }
+            logger.debug("PONG never received, disconnecting from peer. {}", connection.rttStats());
             try {
                 connection.disconnect(DisconnectReason.TIMEOUT);
             } catch (Exception e) {
@@ -44,12 +131,46 @@ public class KeepAlive extends ChannelDuplexHandler {
             return;
         }
 
+        //空闲时检测对端是否存活，到了采样时间时测量RTT，两者都通过PING完成
+        final long remaining = Math.min(lastActiveNanos + idleTimeoutNanos(), nextSampleNanos) - now;
+        if (remaining > 0) {
+            schedule(ctx, remaining);
+            return;
+        }
+        nextSampleNanos = now + maxIntervalNanos;
         try {
-            logger.debug("Idle connection detected, sending Wire PING to peer.");
-            connection.send(PingMessage.get());
+            logger.debug("Idle connection or RTT sample due, sending Wire PING to peer.");
             waitingForPong.set(true);
+            pingSentNanos = now;
+            connection.send(PingMessage.create(now));
         } catch (Exception e) {
             logger.trace("PING not sent because peer is already disconnected");
         }
+        schedule(ctx, pongTimeoutNanos());
+    }
+
+    private long adapt(final long multiple) {
+        final RttStats stats = connection.rttStats();
+        if (!stats.hasSamples()) {
+            return maxIntervalNanos;
+        }
+        final long rto = stats.timeoutNanos();
+        final long timeout = rto > maxIntervalNanos / multiple ? maxIntervalNanos : rto * multiple;
+        return Math.max(minIntervalNanos, timeout);
+    }
+
+    private void schedule(final ChannelHandlerContext ctx, final long delayNanos) {
+        try {
+            check = timeouts.schedule(ctx.executor(), () -> check(ctx), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            logger.trace("Timeout service stopped, keepalive disabled");
+        }
+    }
+
+    private void cancel() {
+        if (check != null) {
+            check.cancel();
+            check = null;
+        }
     }
 }
@@ -0,0 +1,274 @@
+package org.codenil.comm.connections;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 保证同一节点的回调按顺序执行
+ * EVENT_LOOP模式下直接执行，连接的所有事件本来就在同一个事件循环线程中
+ * STRIPED模式下按远程节点标识选择一个串行线程
+ * VIRTUAL_THREAD模式下每个连接一个串行队列，由虚拟线程依次执行
+ * 队列中未完成的任务达到上限时暂停读取该连接，回落到一半时恢复
+ */
+public class OrderedDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderedDispatcher.class);
+
+    private final DispatchMode mode;
+
+    /** STRIPED模式的串行线程 */
+    private final ExecutorService[] stripes;
+
+    /** VIRTUAL_THREAD模式的执行器 */
+    private final ExecutorService virtualThreads;
+
+    /** VIRTUAL_THREAD模式下每个连接的串行队列 */
+    private final Map<PeerConnection, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    /** 单个连接允许的未完成任务数 */
+    private final int maxInFlight;
+
+    private OrderedDispatcher(
+            final DispatchMode mode,
+            final ExecutorService[] stripes,
+            final ExecutorService virtualThreads,
+            final int maxInFlight) {
+        this.mode = mode;
+        this.stripes = stripes;
+        this.virtualThreads = virtualThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public static OrderedDispatcher create(final DispatchMode mode, final int threads) {
+        return create(mode, threads, Integer.MAX_VALUE);
+    }
+
+    public static OrderedDispatcher create(final DispatchMode mode, final int threads, final int maxInFlight) {
+        return switch (mode) {
+            case EVENT_LOOP -> new OrderedDispatcher(mode, null, null, maxInFlight);
+            case STRIPED -> new OrderedDispatcher(mode, createStripes(threads), null, maxInFlight);
+            case VIRTUAL_THREAD -> {
+                if (maxInFlight <= 0) {
+                    throw new IllegalArgumentException("Max in-flight messages must be positive: " + maxInFlight);
+                }
+                final ThreadFactory threadFactory = Thread.ofVirtual().name("comm-callback-", 0).factory();
+                yield new OrderedDispatcher(mode, null,
+                        Executors.newThreadPerTaskExecutor(threadFactory), maxInFlight);
+            }
+        };
+    }
+
+    private static ExecutorService[] createStripes(final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Dispatch threads must be positive: " + threads);
+        }
+        final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("comm-dispatch-%d")
+                .setDaemon(true)
+                .build();
+        final ExecutorService[] stripes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+        return stripes;
+    }
+
+    /**
+     * 是否在调用线程中直接执行
+     */
+    public boolean inline() {
+        return mode == DispatchMode.EVENT_LOOP;
+    }
+
+    /**
+     * 执行连接相关的任务，线程池已关闭时抛出RejectedExecutionException
+     */
+    public void execute(final PeerConnection connection, final Runnable task) {
+        switch (mode) {
+            case EVENT_LOOP -> task.run();
+            case STRIPED -> stripes[stripe(connection)].execute(() -> runSafely(connection, task));
+            case VIRTUAL_THREAD -> submit(connection, task);
+        }
+    }
+
+    /**
+     * 连接断开后释放它的串行队列，应在提交断开事件之后调用
+     * 队列执行完已提交的任务（包括断开事件）后自行从表中移除，不会与之后的任务并发执行
+     */
+    public void remove(final PeerConnection connection) {
+        final SerialQueue queue = queues.get(connection);
+        if (queue != null) {
+            queue.retire();
+        }
+    }
+
+    public void shutdown() {
+        if (stripes != null) {
+            for (ExecutorService stripe : stripes) {
+                stripe.shutdown();
+            }
+        }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+
+    private void submit(final PeerConnection connection, final Runnable task) {
+        //队列移除时会先关闭，关闭后重新取一次，取到的新队列只会在旧队列执行完之后运行
+        while (!queues.computeIfAbsent(connection, SerialQueue::new).submit(task)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * 按远程节点标识选择线程，标识未知时按连接对象选择
+     */
+    private int stripe(final PeerConnection connection) {
+        final String remoteIdentifier = connection.remoteIdentifier();
+        int hash = remoteIdentifier == null || remoteIdentifier.isEmpty()
+                ? System.identityHashCode(connection)
+                : remoteIdentifier.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, stripes.length);
+    }
+
+    private static void runSafely(final PeerConnection connection, final Runnable task) {
+        try {
+            task.run();
+        } catch (final Throwable t) {
+            logger.error("Error while dispatching event for {}", connection.remoteIdentifier(), t);
+        }
+    }
+
+    /**
+     * 单个连接的串行队列，同一时刻最多一个虚拟线程在执行
+     * 连接断开后标记为退役，任务执行完后关闭并从表中移除；断开后才到达的任务会进入新建的队列，新队列同样执行完即移除
+     */
+    private final class SerialQueue implements Runnable {
+
+        private final PeerConnection connection;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        /** 是否已暂停读取，只在持有pauseLock时修改 */
+        private volatile boolean paused;
+        private final Object pauseLock = new Object();
+
+        /** 断开事件已提交，执行完剩余任务后关闭 */
+        private volatile boolean retired;
+
+        /** 已关闭，不再接受任务，只在持有队列的锁时访问 */
+        private boolean closed;
+
+        private SerialQueue(final PeerConnection connection) {
+            this.connection = connection;
+            //断开后才创建的队列只用来执行残余任务
+            this.retired = connection.disconnected();
+        }
+
+        /**
+         * 提交任务，队列已关闭时返回false
+         */
+        private boolean submit(final Runnable task) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                tasks.add(task);
+            }
+            if (inFlight.incrementAndGet() >= maxInFlight && !paused) {
+                updateAutoRead();
+            }
+            schedule();
+            return true;
+        }
+
+        private void retire() {
+            retired = true;
+            try {
+                schedule();
+            } catch (final RejectedExecutionException e) {
+                //执行器已关闭，队列不会再执行
+                logger.trace("Dispatcher stopped, leaving queue of {}", connection.remoteIdentifier());
+            }
+        }
+
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                virtualThreads.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(connection, task);
+                if (inFlight.decrementAndGet() <= resumeThreshold() && paused) {
+                    updateAutoRead();
+                }
+            }
+            //关闭时仍占有running，关闭后的队列不会再被调度
+            if (retired && close()) {
+                return;
+            }
+            running.set(false);
+            //退出前又有任务提交或刚被标记为退役时重新调度
+            if (!tasks.isEmpty() || retired) {
+                schedule();
+            }
+        }
+
+        /**
+         * 队列为空时关闭并从表中移除，只在占有running时调用
+         */
+        private boolean close() {
+            synchronized (this) {
+                if (!tasks.isEmpty()) {
+                    return false;
+                }
+                closed = true;
+            }
+            queues.remove(connection, this);
+            return true;
+        }
+
+        /**
+         * 按当前积压量切换读取状态，每次切换后重新计算，直到状态与积压量一致
+         * 暂停方先写paused再读inFlight，执行方先写inFlight再读paused，两者至少有一方能看到对方的修改，不会一直暂停
+         */
+        private void updateAutoRead() {
+            synchronized (pauseLock) {
+                while (true) {
+                    final int pending = inFlight.get();
+                    if (!paused && pending >= maxInFlight) {
+                        paused = true;
+                        connection.setAutoRead(false);
+                    } else if (paused && pending <= resumeThreshold()) {
+                        paused = false;
+                        connection.setAutoRead(true);
+                    } else {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private int resumeThreshold() {
+            return maxInFlight / 2;
+        }
+    }
+}
@@ -2,8 +2,14 @@ package org.codenil.comm.connections;
 
 import io.netty.channel.ChannelHandler;
 import org.codenil.comm.RemotePeer;
+import org.codenil.comm.callback.WritabilityCallback;
 import org.codenil.comm.message.DisconnectReason;
 import org.codenil.comm.message.Message;
+import org.codenil.comm.message.RawMessage;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 public interface PeerConnection {
 
@@ -17,7 +23,51 @@ public interface PeerConnection {
 
     void setRemotePeer(RemotePeer remotePeer);
 
-    void send(final Message message) throws Exception;
+    /**
+     * 发送消息，返回的future在消息写入socket后完成
+     */
+    CompletableFuture<Void> send(final Message message) throws Exception;
+
+    /**
+     * 批量发送，全部写入后只flush一次
+     */
+    CompletableFuture<Void> sendAll(final Collection<? extends Message> messages) throws Exception;
+
+    /**
+     * 发送请求，返回的future在收到对端响应后完成，超时未响应时以TimeoutException结束
+     * future在事件循环线程中完成，后续有阻塞操作时应使用async方法切换线程
+     */
+    CompletableFuture<RawMessage> request(final Message message, final Duration timeout);
+
+    /**
+     * 写缓冲区未超过高水位
+     */
+    boolean isWritable();
+
+    /**
+     * 写缓冲区中还未写入socket的字节数
+     */
+    long pendingWriteBytes();
+
+    /**
+     * 由保活PING/PONG测得的往返时延统计
+     */
+    RttStats rttStats();
+
+    /**
+     * 订阅可写状态变化
+     */
+    void subscribeWritabilityChanged(WritabilityCallback callback);
+
+    /**
+     * 暂停或恢复从连接读取数据，回调处理不过来时用于反压
+     */
+    void setAutoRead(boolean autoRead);
+
+    /**
+     * 生成本连接内唯一的数字requestId
+     */
+    long nextCorrelationId();
 
     void replaceHandler(String name, ChannelHandler newHandler);
 
@@ -1,16 +1,25 @@
 package org.codenil.comm.connections;
 
+import io.netty.util.ReferenceCountUtil;
 import org.codenil.comm.callback.ConnectCallback;
 import org.codenil.comm.callback.DisconnectCallback;
 import org.codenil.comm.callback.MessageCallback;
+import org.codenil.comm.callback.ResponseCallback;
 import org.codenil.comm.message.DefaultMessage;
+import org.codenil.comm.message.Message;
+import org.codenil.comm.message.MessageCodes;
 import org.codenil.comm.message.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 public class PeerConnectionEvents {
 
+    private static final Logger logger = LoggerFactory.getLogger(PeerConnectionEvents.class);
+
     /** 连接回调订阅 */
     private final Subscribers<ConnectCallback> connectSubscribers = Subscribers.create(true);
 
@@ -18,9 +27,28 @@ public class PeerConnectionEvents {
 
     private final Subscribers<MessageCallback> messageSubscribers = Subscribers.create(true);
 
-    private final Map<Integer, Subscribers<MessageCallback>> subscribersByCode = new ConcurrentHashMap<>();
+    /** 按code路由的消息订阅 */
+    private final CodeTable<Subscribers<MessageCallback>> subscribersByCode = new CodeTable<>();
+
+    /** 没有按code订阅者的业务消息 */
+    private final Subscribers<MessageCallback> unhandledSubscribers = Subscribers.create(true);
+
+    /** 按code注册的请求应答者 */
+    private final CodeTable<ResponseCallback> responders = new CodeTable<>();
+
+    /** 被合并到StripedPeerConnection的底层连接，断开时只通知合并方，不通知订阅者 */
+    private final Map<PeerConnection, DisconnectCallback> disconnectInterceptors = new ConcurrentHashMap<>();
 
-    public PeerConnectionEvents() {}
+    /** 回调执行，保证同一节点的事件顺序 */
+    private final OrderedDispatcher dispatcher;
+
+    public PeerConnectionEvents() {
+        this(OrderedDispatcher.create(DispatchMode.EVENT_LOOP, 0));
+    }
+
+    public PeerConnectionEvents(final OrderedDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
 
     public void subscribeConnect(final ConnectCallback callback) {
         connectSubscribers.subscribe(callback);
@@ -36,27 +64,130 @@ public class PeerConnectionEvents {
 
     public void subscribeByCode(final int messageCode, final MessageCallback callback) {
         subscribersByCode
-                .computeIfAbsent(messageCode, _ -> Subscribers.create())
+                .computeIfAbsent(messageCode, _ -> Subscribers.create(true))
                 .subscribe(callback);
     }
 
+    /**
+     * 订阅没有任何按code订阅者的消息，不包括握手和保活等协议消息
+     */
+    public void subscribeUnhandled(final MessageCallback callback) {
+        unhandledSubscribers.subscribe(callback);
+    }
+
+    /**
+     * 注册指定code的应答者，返回值以相同的requestId回复给请求方，返回null时不回复
+     * 同一code只保留最后注册的应答者
+     */
+    public void registerResponder(final int messageCode, final ResponseCallback callback) {
+        responders.set(messageCode, callback);
+    }
+
+    /**
+     * 连接断开时只调用callback，不通知订阅者，只生效一次
+     */
+    public void interceptDisconnect(final PeerConnection connection, final DisconnectCallback callback) {
+        disconnectInterceptors.put(connection, callback);
+    }
+
     public void dispatchConnect(
             final PeerConnection connection) {
-        connectSubscribers.forEach(s -> s.onConnect(connection));
+        execute(connection, () -> connectSubscribers.forEach(s -> s.onConnect(connection)));
     }
 
     public void dispatchDisconnect(
             final PeerConnection connection) {
-        disconnectSubscribers.forEach(s -> s.onDisconnect(connection));
+        final DisconnectCallback interceptor = disconnectInterceptors.remove(connection);
+        if (interceptor != null) {
+            execute(connection, () -> interceptor.onDisconnect(connection));
+        } else {
+            execute(connection, () -> disconnectSubscribers.forEach(s -> s.onDisconnect(connection)));
+        }
+        dispatcher.remove(connection);
     }
 
     public void dispatchMessage(final PeerConnection connection, final RawMessage message) {
-        final DefaultMessage msg = new DefaultMessage(connection, message);
-        messageSubscribers.forEach(s -> s.onMessage(msg));
+        if (dispatcher.inline()) {
+            deliverMessage(connection, message);
+            return;
+        }
+        //交给其他线程前保留引用，回调执行完成后释放
+        ReferenceCountUtil.retain(message);
+        try {
+            dispatcher.execute(connection, () -> {
+                try {
+                    deliverMessage(connection, message);
+                } finally {
+                    ReferenceCountUtil.release(message);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            ReferenceCountUtil.release(message);
+            logger.debug("Dropped message from {} after dispatcher shutdown", connection.remoteIdentifier());
+        }
     }
 
     public void dispatchMessageByCode(final int code, final PeerConnection connection, final RawMessage message) {
+        final Subscribers<MessageCallback> subscribers = subscribersByCode.get(code);
+        if (subscribers != null) {
+            final DefaultMessage msg = new DefaultMessage(connection, message);
+            subscribers.forEach(s -> s.onMessage(msg));
+        }
+    }
+
+    /**
+     * 停止回调线程
+     */
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    /**
+     * 先通知全量订阅者，有应答者的请求交给应答者，其余按code路由
+     */
+    private void deliverMessage(final PeerConnection connection, final RawMessage message) {
         final DefaultMessage msg = new DefaultMessage(connection, message);
-        subscribersByCode.get(code).forEach(s -> s.onMessage(msg));
+        messageSubscribers.forEach(s -> s.onMessage(msg));
+
+        final ResponseCallback responder = responders.get(message.code());
+        if (responder != null) {
+            respond(connection, message, responder.response(msg));
+            return;
+        }
+
+        final Subscribers<MessageCallback> byCode = subscribersByCode.get(message.code());
+        if (byCode != null) {
+            byCode.forEach(s -> s.onMessage(msg));
+        } else if (!MessageCodes.isProtocolMessage(message.code())) {
+            unhandledSubscribers.forEach(s -> s.onMessage(msg));
+        }
+    }
+
+    private void respond(final PeerConnection connection, final RawMessage request, final Message reply) {
+        if (reply == null) {
+            return;
+        }
+        final RawMessage response = RawMessage.copyOf(reply);
+        response.setRequestId(request.requestId());
+        response.setCorrelationId(request.correlationId());
+        response.setResponse(true);
+        try {
+            connection.send(response).whenComplete((_, error) -> {
+                if (error != null) {
+                    logger.debug("Failed to respond to {} from {}", request.requestId(),
+                            connection.remoteIdentifier(), error);
+                }
+            });
+        } catch (final Exception e) {
+            logger.debug("Failed to respond to {} from {}", request.requestId(), connection.remoteIdentifier(), e);
+        }
+    }
+
+    private void execute(final PeerConnection connection, final Runnable task) {
+        try {
+            dispatcher.execute(connection, task);
+        } catch (final RejectedExecutionException e) {
+            logger.debug("Dropped connection event for {} after dispatcher shutdown", connection.remoteIdentifier());
+        }
     }
 }
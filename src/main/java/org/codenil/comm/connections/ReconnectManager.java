@@ -0,0 +1,148 @@
+package org.codenil.comm.connections;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.codenil.comm.RemotePeer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 断开的主动连接按指数退避重连
+ * 第n次重试的等待时间在 [d/2, d] 之间随机，d = min(初始间隔 * 2^n, 最大间隔)，避免大量节点同时重连
+ * 重连任务通过EventExecutorGroup.next()分散到各个事件循环上
+ * 每次重试前检查节点是否仍需要重连，不需要时放弃
+ */
+public class ReconnectManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconnectManager.class);
+
+    private final Function<RemotePeer, CompletableFuture<PeerConnection>> dialer;
+
+    /** 节点是否仍需要重连，例如是否还在断开连接表中 */
+    private final Predicate<RemotePeer> shouldReconnect;
+
+    private final EventExecutorGroup executors;
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+
+    /** 正在重连的节点，按endpoint索引，同一节点只保留一个重连任务 */
+    private final Map<String, Attempt> attempts = new ConcurrentHashMap<>();
+
+    private volatile boolean stopped;
+
+    public ReconnectManager(
+            final Function<RemotePeer, CompletableFuture<PeerConnection>> dialer,
+            final Predicate<RemotePeer> shouldReconnect,
+            final EventExecutorGroup executors,
+            final Duration initialDelay,
+            final Duration maxDelay) {
+        if (initialDelay.isNegative() || initialDelay.isZero() || maxDelay.compareTo(initialDelay) < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid reconnect delays: initial " + initialDelay + ", max " + maxDelay);
+        }
+        this.dialer = dialer;
+        this.shouldReconnect = shouldReconnect;
+        this.executors = executors;
+        this.initialDelayNanos = initialDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+    }
+
+    /**
+     * 开始重连节点，已在重连中时忽略
+     */
+    public void reconnect(final RemotePeer remotePeer) {
+        if (stopped) {
+            return;
+        }
+        final Attempt attempt = new Attempt(remotePeer);
+        if (attempts.putIfAbsent(remotePeer.endpoint(), attempt) == null) {
+            schedule(attempt);
+        }
+    }
+
+    /**
+     * 停止所有重连，已发起的连接不受影响
+     */
+    public void stop() {
+        stopped = true;
+        attempts.clear();
+    }
+
+    /**
+     * 第retries次重试前的等待时间
+     */
+    private long backoffNanos(final int retries) {
+        long delay = initialDelayNanos;
+        for (int i = 0; i < retries && delay < maxDelayNanos; i++) {
+            delay = delay > maxDelayNanos / 2 ? maxDelayNanos : delay * 2;
+        }
+        final long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    private void schedule(final Attempt attempt) {
+        final long delay = backoffNanos(attempt.retries);
+        try {
+            executors.next().schedule(() -> redial(attempt), delay, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            //事件循环已关闭
+            attempts.remove(attempt.remotePeer.endpoint(), attempt);
+        }
+    }
+
+    private void redial(final Attempt attempt) {
+        final RemotePeer remotePeer = attempt.remotePeer;
+        if (stopped || attempts.get(remotePeer.endpoint()) != attempt) {
+            return;
+        }
+        if (!shouldReconnect.test(remotePeer)) {
+            attempts.remove(remotePeer.endpoint(), attempt);
+            return;
+        }
+
+        final CompletableFuture<PeerConnection> connectFuture;
+        try {
+            connectFuture = dialer.apply(remotePeer);
+        } catch (final RuntimeException e) {
+            retry(attempt, e);
+            return;
+        }
+        connectFuture.whenComplete((_, err) -> {
+            if (err != null) {
+                retry(attempt, err);
+            } else {
+                logger.debug("Reconnected to {} after {} retries", remotePeer, attempt.retries);
+                attempts.remove(remotePeer.endpoint(), attempt);
+            }
+        });
+    }
+
+    private void retry(final Attempt attempt, final Throwable cause) {
+        logger.debug("Reconnect to {} failed, retry {}", attempt.remotePeer, attempt.retries + 1, cause);
+        attempt.retries++;
+        schedule(attempt);
+    }
+
+    /**
+     * 一个节点的重连状态，同一时刻只有一个任务在访问
+     */
+    private static final class Attempt {
+
+        private final RemotePeer remotePeer;
+
+        private volatile int retries;
+
+        private Attempt(final RemotePeer remotePeer) {
+            this.remotePeer = remotePeer;
+        }
+    }
+}
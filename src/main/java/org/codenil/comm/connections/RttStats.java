@@ -0,0 +1,144 @@
+package org.codenil.comm.connections;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 连接的往返时延统计，样本来自带时间戳的PING/PONG
+ *
+ * 平滑RTT和偏差按RFC 6298的指数加权移动平均计算：srtt权重1/8，偏差权重1/4
+ * 另按微秒取对数分桶记录直方图，第i个桶统计 [2^i, 2^(i+1)) 微秒的样本，用于估算分位数
+ * 只有连接的事件循环写入，其他线程可以随时读取
+ */
+public class RttStats {
+
+    /** 最后一个桶包含所有 >= 2^31 微秒（约36分钟）的样本 */
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    private volatile long samples;
+    private volatile long smoothedNanos;
+    private volatile long varianceNanos;
+    private volatile long latestNanos;
+    private volatile long minNanos = Long.MAX_VALUE;
+    private volatile long maxNanos;
+
+    /**
+     * 记录一个样本，负值（时钟异常）忽略
+     */
+    public synchronized void record(final long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (samples == 0) {
+            smoothedNanos = rttNanos;
+            varianceNanos = rttNanos / 2;
+        } else {
+            final long error = Math.abs(smoothedNanos - rttNanos);
+            varianceNanos = varianceNanos - (varianceNanos >> 2) + (error >> 2);
+            smoothedNanos = smoothedNanos - (smoothedNanos >> 3) + (rttNanos >> 3);
+        }
+        latestNanos = rttNanos;
+        minNanos = Math.min(minNanos, rttNanos);
+        maxNanos = Math.max(maxNanos, rttNanos);
+        histogram.incrementAndGet(bucket(rttNanos));
+        samples = samples + 1;
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    public boolean hasSamples() {
+        return samples > 0;
+    }
+
+    /**
+     * 平滑RTT，没有样本时为0
+     */
+    public long smoothedNanos() {
+        return smoothedNanos;
+    }
+
+    /**
+     * RTT平均偏差，没有样本时为0
+     */
+    public long varianceNanos() {
+        return varianceNanos;
+    }
+
+    public long latestNanos() {
+        return latestNanos;
+    }
+
+    /**
+     * 最小RTT，没有样本时为0
+     */
+    public long minNanos() {
+        final long min = minNanos;
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    public long maxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * 重传超时的估算值 srtt + 4 * rttvar，没有样本时为0
+     */
+    public long timeoutNanos() {
+        return smoothedNanos + 4 * varianceNanos;
+    }
+
+    /**
+     * 直方图各桶的样本数
+     */
+    public long[] histogram() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * 按直方图估算分位数，返回所在桶的上界，没有样本时为0
+     * @param quantile 0到1之间，例如0.99
+     */
+    public long quantileNanos(final double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        }
+        final long[] counts = histogram();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((2L << i) * 1000, maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    private static int bucket(final long rttNanos) {
+        final long micros = Math.max(1, rttNanos / 1000);
+        return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "RttStats{samples=" + samples
+                + ", srtt=" + smoothedNanos / 1000 + "us"
+                + ", rttvar=" + varianceNanos / 1000 + "us"
+                + ", min=" + minNanos() / 1000 + "us"
+                + ", max=" + maxNanos / 1000 + "us}";
+    }
+}
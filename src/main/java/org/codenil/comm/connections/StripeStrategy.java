@@ -0,0 +1,14 @@
+package org.codenil.comm.connections;
+
+/**
+ * 同一节点有多条连接时，发送消息选择连接的策略
+ */
+public enum StripeStrategy {
+    /** 依次轮换 */
+    ROUND_ROBIN,
+    /** 按key的哈希选择，同一key的消息走同一条连接，保持顺序 */
+    KEY_HASH,
+    /** 选择写缓冲区中待发送字节最少的连接 */
+    LEAST_PENDING,
+    ;
+}
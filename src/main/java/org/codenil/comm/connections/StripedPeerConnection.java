@@ -0,0 +1,346 @@
+package org.codenil.comm.connections;
+
+import io.netty.channel.ChannelHandler;
+import org.codenil.comm.RemotePeer;
+import org.codenil.comm.callback.WritabilityCallback;
+import org.codenil.comm.message.DisconnectReason;
+import org.codenil.comm.message.Message;
+import org.codenil.comm.message.RawMessage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 到同一节点的多条连接，对外表现为一个连接
+ * 发送时按StripeStrategy选择一条连接，避免单个大消息阻塞后续消息，也让不同连接的事件循环并行写
+ * 已断开的连接不再被选中，可以替换为重新建立的连接；全部断开后整个连接视为断开并关闭，不再替换
+ * 收到的消息仍然以实际收到消息的连接分发
+ */
+public class StripedPeerConnection implements PeerConnection {
+
+    /** 替换时整体复制 */
+    private volatile PeerConnection[] connections;
+
+    private final StripeStrategy strategy;
+
+    /** ROUND_ROBIN的轮换计数 */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** 全部连接断开后关闭，只在持有锁时修改 */
+    private volatile boolean closed;
+
+    /** 已主动断开，不再替换连接 */
+    private volatile boolean closing;
+
+    /** 已派发断开事件的底层连接，只在持有锁时访问；判断是否全部断开时不依赖各连接标记断开和派发事件的先后 */
+    private final Set<PeerConnection> down = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** 替换的连接沿用的可写性订阅和读取状态 */
+    private final List<WritabilityCallback> writabilityCallbacks = new CopyOnWriteArrayList<>();
+    private volatile boolean autoRead = true;
+
+    public StripedPeerConnection(
+            final List<? extends PeerConnection> connections,
+            final StripeStrategy strategy) {
+        if (connections.isEmpty()) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        this.connections = connections.toArray(new PeerConnection[0]);
+        this.strategy = strategy;
+    }
+
+    /**
+     * 底层的所有连接
+     */
+    public List<PeerConnection> connections() {
+        return List.of(connections);
+    }
+
+    /**
+     * 是否包含指定的底层连接
+     */
+    public boolean contains(final PeerConnection connection) {
+        return indexOf(connections, connection) >= 0;
+    }
+
+    /**
+     * 是否还接受替换的连接，已关闭或已主动断开时返回false
+     */
+    public boolean replaceable() {
+        return !closed && !closing;
+    }
+
+    /**
+     * 把断开的底层连接替换为重新建立的连接
+     * @return 已关闭、已主动断开或原连接不存在时返回false，调用方负责关闭新连接
+     */
+    public synchronized boolean replace(final PeerConnection previous, final PeerConnection replacement) {
+        if (!replaceable()) {
+            return false;
+        }
+        final int index = indexOf(connections, previous);
+        if (index < 0) {
+            return false;
+        }
+        down.remove(previous);
+        writabilityCallbacks.forEach(replacement::subscribeWritabilityChanged);
+        replacement.setAutoRead(autoRead);
+        final PeerConnection[] replaced = connections.clone();
+        replaced[index] = replacement;
+        connections = replaced;
+        return true;
+    }
+
+    /**
+     * 记录底层连接已断开，全部底层连接都已断开时关闭
+     * @return 本次调用关闭了连接时返回true，每个连接只返回一次
+     */
+    public synchronized boolean closeIfAllDisconnected(final PeerConnection stripe) {
+        if (closed) {
+            return false;
+        }
+        if (contains(stripe)) {
+            down.add(stripe);
+        }
+        for (PeerConnection connection : connections) {
+            if (!down.contains(connection) && !connection.disconnected()) {
+                return false;
+            }
+        }
+        closed = true;
+        return true;
+    }
+
+    /**
+     * 按策略为消息选择一条底层连接，与send(message)的选择一致
+     */
+    public PeerConnection connectionFor(final Message message) {
+        return select(message.code());
+    }
+
+    @Override
+    public String pkiId() {
+        return primary().pkiId();
+    }
+
+    /**
+     * 保活在每条连接上各自进行，这里返回第一条连接的统计，各条连接的统计见connections()
+     */
+    @Override
+    public RttStats rttStats() {
+        return primary().rttStats();
+    }
+
+    @Override
+    public String remoteIdentifier() {
+        return primary().remoteIdentifier();
+    }
+
+    @Override
+    public boolean disconnected() {
+        if (closed) {
+            return true;
+        }
+        for (PeerConnection connection : connections) {
+            if (!connection.disconnected()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RemotePeer remotePeer() {
+        return primary().remotePeer();
+    }
+
+    @Override
+    public void setRemotePeer(final RemotePeer remotePeer) {
+        for (PeerConnection connection : connections) {
+            connection.setRemotePeer(remotePeer);
+        }
+    }
+
+    /**
+     * KEY_HASH策略下以消息code作为key
+     */
+    @Override
+    public CompletableFuture<Void> send(final Message message) throws Exception {
+        return select(message.code()).send(message);
+    }
+
+    /**
+     * 指定key发送，KEY_HASH策略下同一key的消息走同一条连接，其他策略忽略key
+     */
+    public CompletableFuture<Void> send(final Object key, final Message message) throws Exception {
+        return select(key).send(message);
+    }
+
+    /**
+     * KEY_HASH策略下按key分组，每组在各自的连接上批量发送；其他策略整批走一条连接，批内保持顺序
+     */
+    @Override
+    public CompletableFuture<Void> sendAll(final Collection<? extends Message> messages) throws Exception {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (strategy != StripeStrategy.KEY_HASH) {
+            return select(null).sendAll(messages);
+        }
+
+        final PeerConnection[] connections = this.connections;
+        final List<List<Message>> groups = new ArrayList<>(connections.length);
+        for (int i = 0; i < connections.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (Message message : messages) {
+            groups.get(keyIndex(message.code(), connections.length)).add(message);
+        }
+        final List<CompletableFuture<Void>> results = new ArrayList<>(connections.length);
+        for (int i = 0; i < connections.length; i++) {
+            if (!groups.get(i).isEmpty()) {
+                results.add(connections[i].sendAll(groups.get(i)));
+            }
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<RawMessage> request(final Message message, final Duration timeout) {
+        return select(message.code()).request(message, timeout);
+    }
+
+    /**
+     * 任意一条连接可写即可写
+     */
+    @Override
+    public boolean isWritable() {
+        for (PeerConnection connection : connections) {
+            if (!connection.disconnected() && connection.isWritable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long pendingWriteBytes() {
+        long pending = 0;
+        for (PeerConnection connection : connections) {
+            if (!connection.disconnected()) {
+                pending += connection.pendingWriteBytes();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 回调中的连接是状态发生变化的那条底层连接
+     */
+    @Override
+    public synchronized void subscribeWritabilityChanged(final WritabilityCallback callback) {
+        writabilityCallbacks.add(callback);
+        for (PeerConnection connection : connections) {
+            connection.subscribeWritabilityChanged(callback);
+        }
+    }
+
+    @Override
+    public synchronized void setAutoRead(final boolean autoRead) {
+        this.autoRead = autoRead;
+        for (PeerConnection connection : connections) {
+            connection.setAutoRead(autoRead);
+        }
+    }
+
+    @Override
+    public long nextCorrelationId() {
+        return primary().nextCorrelationId();
+    }
+
+    @Override
+    public void replaceHandler(final String name, final ChannelHandler newHandler) {
+        for (PeerConnection connection : connections) {
+            connection.replaceHandler(name, newHandler);
+        }
+    }
+
+    @Override
+    public void disconnect(final DisconnectReason reason) throws Exception {
+        closing = true;
+        for (PeerConnection connection : connections) {
+            connection.disconnect(reason);
+        }
+    }
+
+    @Override
+    public void terminateConnection() {
+        closing = true;
+        for (PeerConnection connection : connections) {
+            connection.terminateConnection();
+        }
+    }
+
+    private PeerConnection primary() {
+        return connections[0];
+    }
+
+    /**
+     * 按策略选择连接，选中的连接已断开时顺延到下一条存活的连接
+     */
+    private PeerConnection select(final Object key) {
+        final PeerConnection[] connections = this.connections;
+        final int start = switch (strategy) {
+            case ROUND_ROBIN -> Math.floorMod(next.getAndIncrement(), connections.length);
+            case KEY_HASH -> keyIndex(key, connections.length);
+            case LEAST_PENDING -> leastPendingIndex(connections);
+        };
+        for (int i = 0; i < connections.length; i++) {
+            final PeerConnection connection = connections[(start + i) % connections.length];
+            if (!connection.disconnected()) {
+                return connection;
+            }
+        }
+        //全部断开时交给原连接返回失败
+        return connections[start];
+    }
+
+    private static int keyIndex(final Object key, final int size) {
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, size);
+    }
+
+    private static int leastPendingIndex(final PeerConnection[] connections) {
+        int index = 0;
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i].disconnected()) {
+                continue;
+            }
+            final long pending = connections[i].pendingWriteBytes();
+            if (pending < least) {
+                least = pending;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    private static int indexOf(final PeerConnection[] connections, final PeerConnection connection) {
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] == connection) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,17 +1,24 @@
 package org.codenil.comm.connections;
 
-import com.google.common.collect.ImmutableSet;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
+/**
+ * 订阅者集合
+ * 订阅和取消订阅时整体替换数组快照，forEach直接遍历当前快照，不加锁也不分配内存
+ */
 public class Subscribers<T> {
     private static final Subscribers<?> NONE = new EmptySubscribers<>();
 
+    private static final long[] NO_IDS = new long[0];
+    private static final Object[] NO_SUBSCRIBERS = new Object[0];
+
     private final AtomicLong subscriberId = new AtomicLong();
-    private final Map<Long, T> subscribers = new ConcurrentHashMap<>();
+
+    /** ids和subscribers下标一一对应，只在持有锁时替换 */
+    private volatile long[] ids = NO_IDS;
+    private volatile Object[] subscribers = NO_SUBSCRIBERS;
 
     private final boolean suppressCallbackExceptions;
 
@@ -35,31 +42,59 @@ public class Subscribers<T> {
 
     public long subscribe(final T subscriber) {
         final long id = subscriberId.getAndIncrement();
-        subscribers.put(id, subscriber);
+        synchronized (this) {
+            final int length = ids.length;
+            final long[] newIds = Arrays.copyOf(ids, length + 1);
+            final Object[] newSubscribers = Arrays.copyOf(subscribers, length + 1);
+            newIds[length] = id;
+            newSubscribers[length] = subscriber;
+            //先替换ids，forEach只读取subscribers
+            ids = newIds;
+            subscribers = newSubscribers;
+        }
         return id;
     }
 
     public boolean unsubscribe(final long subscriberId) {
-        return subscribers.remove(subscriberId) != null;
+        synchronized (this) {
+            final long[] currentIds = ids;
+            for (int i = 0; i < currentIds.length; i++) {
+                if (currentIds[i] != subscriberId) {
+                    continue;
+                }
+                final int length = currentIds.length;
+                final long[] newIds = new long[length - 1];
+                final Object[] newSubscribers = new Object[length - 1];
+                System.arraycopy(currentIds, 0, newIds, 0, i);
+                System.arraycopy(currentIds, i + 1, newIds, i, length - i - 1);
+                System.arraycopy(subscribers, 0, newSubscribers, 0, i);
+                System.arraycopy(subscribers, i + 1, newSubscribers, i, length - i - 1);
+                ids = newIds;
+                subscribers = newSubscribers;
+                return true;
+            }
+            return false;
+        }
     }
 
+    @SuppressWarnings("unchecked")
     public void forEach(final Consumer<T> action) {
-        ImmutableSet.copyOf(subscribers.values())
-                .forEach(subscriber -> {
-                    try {
-                        action.accept(subscriber);
-                    } catch (final Exception e) {
-                        if (suppressCallbackExceptions) {
+        final Object[] snapshot = subscribers;
+        for (Object subscriber : snapshot) {
+            try {
+                action.accept((T) subscriber);
+            } catch (final Exception e) {
+                if (suppressCallbackExceptions) {
 //                                    LOG.debug("Error in callback: {}", e);
-                        } else {
-                            throw e;
-                        }
-                    }
-                });
+                } else {
+                    throw e;
+                }
+            }
+        }
     }
 
     public int getSubscriberCount() {
-        return subscribers.size();
+        return subscribers.length;
     }
 
     private static class EmptySubscribers<T> extends Subscribers<T> {
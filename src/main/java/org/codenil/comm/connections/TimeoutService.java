@@ -0,0 +1,64 @@
+package org.codenil.comm.connections;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 所有连接共用的超时服务，基于一个HashedWheelTimer
+ * 握手超时、空闲检测、延迟关闭和请求超时都在这里登记，不再在每个连接的事件循环上各自调度任务
+ * 登记和取消都是O(1)，到期时间的误差在一个tick以内
+ */
+public class TimeoutService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeoutService.class);
+
+    private final HashedWheelTimer timer;
+
+    public TimeoutService(final ThreadFactory threadFactory, final long tickDuration, final TimeUnit unit) {
+        this.timer = new HashedWheelTimer(threadFactory, tickDuration, unit);
+    }
+
+    /**
+     * 到期后在时间轮线程中执行，只适合完成future之类的轻量操作
+     * @throws RejectedExecutionException 服务已停止
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        try {
+            return timer.newTimeout(_ -> task.run(), delay, unit);
+        } catch (final IllegalStateException e) {
+            throw new RejectedExecutionException("Timeout service stopped", e);
+        }
+    }
+
+    /**
+     * 到期后交给指定的事件循环执行，涉及channel的操作使用这个方法
+     * @throws RejectedExecutionException 服务已停止
+     */
+    public Timeout schedule(
+            final EventExecutor executor,
+            final Runnable task,
+            final long delay,
+            final TimeUnit unit) {
+        return schedule(() -> {
+            try {
+                executor.execute(task);
+            } catch (final RejectedExecutionException e) {
+                logger.trace("Event loop shut down, dropping timeout task");
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * 停止时间轮，未到期的任务不再执行
+     */
+    public void stop() {
+        timer.stop();
+    }
+}
@@ -0,0 +1,74 @@
+package org.codenil.comm.gossip;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.codenil.comm.serialize.Varints;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GOSSIP帧的data部分，一帧可以携带多条消息
+ *
+ * 消息数(varint) + 每条消息：id(8) + ttl(varint) + code(varint) + data长度(varint) + data
+ */
+public final class GossipCodec {
+
+    private GossipCodec() {}
+
+    /**
+     * 单条消息编码后的字节数
+     */
+    public static int encodedLength(final GossipMessage message) {
+        return Long.BYTES + Varints.sizeOf(message.ttl()) + Varints.sizeOf(message.code())
+                + Varints.sizeOf(message.data().length) + message.data().length;
+    }
+
+    public static byte[] encode(final List<GossipMessage> messages) {
+        int length = Varints.sizeOf(messages.size());
+        for (GossipMessage message : messages) {
+            length += encodedLength(message);
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuf out = Unpooled.wrappedBuffer(bytes).clear();
+        Varints.writeVarInt(out, messages.size());
+        for (GossipMessage message : messages) {
+            out.writeLong(message.id());
+            Varints.writeVarInt(out, message.ttl());
+            Varints.writeVarInt(out, message.code());
+            Varints.writeVarInt(out, message.data().length);
+            out.writeBytes(message.data());
+        }
+        return bytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException 数据格式不正确
+     */
+    public static List<GossipMessage> decode(final byte[] bytes) {
+        final ByteBuf in = Unpooled.wrappedBuffer(bytes);
+        try {
+            final int count = Varints.readVarInt(in);
+            //每条消息至少11字节，先校验数量避免按伪造的数量分配
+            if (count < 0 || count > in.readableBytes() / 11) {
+                throw new IllegalArgumentException("Invalid gossip message count: " + count);
+            }
+            final List<GossipMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final long id = in.readLong();
+                final int ttl = Varints.readVarInt(in);
+                final int code = Varints.readVarInt(in);
+                final int length = Varints.readVarInt(in);
+                if (length < 0 || length > in.readableBytes()) {
+                    throw new IllegalArgumentException("Invalid gossip data length: " + length);
+                }
+                final byte[] data = new byte[length];
+                in.readBytes(data);
+                messages.add(new GossipMessage(id, ttl, code, data));
+            }
+            return messages;
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated gossip frame", e);
+        }
+    }
+}
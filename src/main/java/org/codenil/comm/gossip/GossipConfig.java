@@ -0,0 +1,84 @@
+package org.codenil.comm.gossip;
+
+import java.time.Duration;
+
+public class GossipConfig {
+
+    /** 默认每条消息转发的节点数 */
+    public static final int DEFAULT_FANOUT = 3;
+
+    /** 默认最大转发跳数 */
+    public static final int DEFAULT_TTL = 6;
+
+    /** 默认精确去重的消息数 */
+    public static final int DEFAULT_SEEN_CAPACITY = 64 * 1024;
+
+    /** 默认单个批次的最大字节数 64KB */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    /** 每条消息转发给多少个随机节点 */
+    private int fanout = DEFAULT_FANOUT;
+
+    /** 发布时的跳数，每转发一次减一，减到0后不再转发 */
+    private int ttl = DEFAULT_TTL;
+
+    /** 精确去重缓存的容量，超出后由布隆过滤器兜底 */
+    private int seenCapacity = DEFAULT_SEEN_CAPACITY;
+
+    /** 已见消息的保留时间，应大于消息在集群中传播完所需的时间 */
+    private Duration seenExpiry = Duration.ofMinutes(1);
+
+    /** 转发前等待的时间，期间发往同一节点的消息合并为一帧 */
+    private Duration batchDelay = Duration.ofMillis(20);
+
+    /** 批次达到该字节数时立即发送 */
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    public int fanout() {
+        return fanout;
+    }
+
+    public void setFanout(int fanout) {
+        this.fanout = fanout;
+    }
+
+    public int ttl() {
+        return ttl;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    public int seenCapacity() {
+        return seenCapacity;
+    }
+
+    public void setSeenCapacity(int seenCapacity) {
+        this.seenCapacity = seenCapacity;
+    }
+
+    public Duration seenExpiry() {
+        return seenExpiry;
+    }
+
+    public void setSeenExpiry(Duration seenExpiry) {
+        this.seenExpiry = seenExpiry;
+    }
+
+    public Duration batchDelay() {
+        return batchDelay;
+    }
+
+    public void setBatchDelay(Duration batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    public int maxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+}
@@ -0,0 +1,51 @@
+package org.codenil.comm.gossip;
+
+/**
+ * 一条gossip消息
+ * id由发布方随机生成，用于去重；ttl为剩余的转发跳数
+ */
+public class GossipMessage {
+
+    private final long id;
+
+    private final int ttl;
+
+    /** 应用自定义的消息类型 */
+    private final int code;
+
+    private final byte[] data;
+
+    public GossipMessage(
+            final long id,
+            final int ttl,
+            final int code,
+            final byte[] data) {
+        this.id = id;
+        this.ttl = ttl;
+        this.code = code;
+        this.data = data;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public int ttl() {
+        return ttl;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * 转发给下一跳的副本，ttl减一
+     */
+    GossipMessage nextHop() {
+        return new GossipMessage(id, ttl - 1, code, data);
+    }
+}
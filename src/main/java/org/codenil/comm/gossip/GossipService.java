@@ -0,0 +1,193 @@
+package org.codenil.comm.gossip;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codenil.comm.NetworkService;
+import org.codenil.comm.callback.GossipCallback;
+import org.codenil.comm.connections.PeerConnection;
+import org.codenil.comm.connections.Subscribers;
+import org.codenil.comm.message.DefaultMessage;
+import org.codenil.comm.message.MessageCodes;
+import org.codenil.comm.message.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于MessageCodes.GOSSIP的消息扩散
+ *
+ * 发布的消息发给fanout个随机节点，收到的新消息回调订阅者后，ttl未耗尽时再转发给fanout个随机节点
+ * 重复收到的消息由SeenCache丢弃，不回调也不转发
+ * 转发前等待batchDelay，期间发往同一节点的消息合并为一个GOSSIP帧
+ */
+public class GossipService {
+
+    private static final Logger logger = LoggerFactory.getLogger(GossipService.class);
+
+    private final NetworkService network;
+    private final GossipConfig config;
+    private final SeenCache seen;
+
+    private final Subscribers<GossipCallback> subscribers = Subscribers.create(true);
+
+    /** 按节点标识缓存待发送的消息，发送后移除，不为断开的节点保留批次 */
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    public GossipService(final NetworkService network, final GossipConfig config) {
+        if (config.fanout() <= 0) {
+            throw new IllegalArgumentException("Gossip fanout must be positive: " + config.fanout());
+        }
+        this.network = network;
+        this.config = config;
+        this.seen = new SeenCache(config.seenCapacity(), config.seenExpiry().toNanos());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("comm-gossip-%d")
+                .setDaemon(true)
+                .build());
+        network.subscribeMessageByCode(MessageCodes.GOSSIP, this::onMessage);
+    }
+
+    public void subscribe(final GossipCallback callback) {
+        subscribers.subscribe(callback);
+    }
+
+    /**
+     * 发布一条消息，本节点不会回调自己发布的消息
+     * @return 消息id
+     */
+    public long publish(final int code, final byte[] data) {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        seen.markSeen(id);
+        forward(new GossipMessage(id, config.ttl(), code, data), null);
+        return id;
+    }
+
+    /**
+     * 立即发送所有缓存的批次并停止调度线程
+     */
+    public void stop() {
+        batches.keySet().forEach(this::flush);
+        scheduler.shutdown();
+    }
+
+    private void onMessage(final DefaultMessage message) {
+        final PeerConnection connection = message.connection();
+        final List<GossipMessage> messages;
+        try {
+            messages = GossipCodec.decode(message.message().data());
+        } catch (final IllegalArgumentException e) {
+            logger.debug("Invalid gossip frame from {}", connection.remoteIdentifier(), e);
+            return;
+        }
+        for (GossipMessage gossip : messages) {
+            if (!seen.markSeen(gossip.id())) {
+                continue;
+            }
+            subscribers.forEach(s -> s.onGossip(connection, gossip));
+            if (gossip.ttl() > 1) {
+                forward(gossip.nextHop(), connection.remoteIdentifier());
+            }
+        }
+    }
+
+    /**
+     * 从存活连接中随机选fanout个节点，跳过消息的来源节点
+     */
+    private void forward(final GossipMessage message, final String from) {
+        final List<PeerConnection> candidates = new ArrayList<>();
+        network.forEachAlive(connection -> {
+            if (!connection.disconnected() && !connection.remoteIdentifier().equals(from)) {
+                candidates.add(connection);
+            }
+        });
+        final int targets = Math.min(config.fanout(), candidates.size());
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < targets; i++) {
+            //部分洗牌，前targets个即为随机选出的节点
+            final int j = i + random.nextInt(candidates.size() - i);
+            final PeerConnection target = candidates.get(j);
+            candidates.set(j, candidates.get(i));
+            candidates.set(i, target);
+            enqueue(target.remoteIdentifier(), message);
+        }
+    }
+
+    private void enqueue(final String peer, final GossipMessage message) {
+        while (true) {
+            final Batch batch = batches.computeIfAbsent(peer, _ -> new Batch());
+            final boolean full;
+            synchronized (batch) {
+                //批次刚被发送并移除，重新取一个
+                if (batch.removed) {
+                    continue;
+                }
+                if (batch.messages.isEmpty()) {
+                    schedule(peer);
+                }
+                batch.messages.add(message);
+                batch.bytes += GossipCodec.encodedLength(message);
+                //已停止时不再等待，直接发送
+                full = batch.bytes >= config.maxBatchBytes() || scheduler.isShutdown();
+            }
+            if (full) {
+                flush(peer);
+            }
+            return;
+        }
+    }
+
+    private void schedule(final String peer) {
+        try {
+            scheduler.schedule(() -> flush(peer), config.batchDelay().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            logger.trace("Gossip scheduler stopped, sending batch to {} immediately", peer);
+        }
+    }
+
+    private void flush(final String peer) {
+        final Batch batch = batches.get(peer);
+        if (batch == null) {
+            return;
+        }
+        final List<GossipMessage> messages;
+        synchronized (batch) {
+            if (batch.messages.isEmpty()) {
+                return;
+            }
+            messages = batch.messages;
+            batch.removed = true;
+            batches.remove(peer, batch);
+        }
+        final RawMessage rawMessage = RawMessage.create(MessageCodes.GOSSIP);
+        rawMessage.setData(GossipCodec.encode(messages));
+        network.send(peer, rawMessage).whenComplete((_, err) -> {
+            if (err != null) {
+                logger.debug("Failed to gossip {} messages to {}", messages.size(), peer, err);
+            }
+        });
+    }
+
+    /**
+     * 发往同一节点的待发送消息
+     */
+    private static final class Batch {
+        private final List<GossipMessage> messages = new ArrayList<>();
+        private int bytes;
+
+        /** 已发送并从batches中移除，不再接受消息 */
+        private boolean removed;
+    }
+}
@@ -0,0 +1,140 @@
+package org.codenil.comm.gossip;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 已见消息id的去重缓存，内存有上限，按时间过期
+ *
+ * 最近的id保存在按插入顺序排列的精确表中，超过容量或保留时间后从表头淘汰
+ * 同时写入两代轮换的布隆过滤器，每半个保留时间轮换一次，覆盖被精确表提前淘汰的id
+ * 只有精确表在保留时间内淘汰过id时才采信布隆过滤器，避免误判丢弃新消息
+ */
+public class SeenCache {
+
+    /** 每个id占用的位数，约1%的误判率 */
+    private static final int BITS_PER_ENTRY = 10;
+
+    private static final int HASH_FUNCTIONS = 7;
+
+    /** 布隆过滤器按精确表容量的倍数分配，精确表溢出后仍能覆盖保留时间内的id */
+    private static final int BLOOM_CAPACITY_FACTOR = 4;
+
+    private final int capacity;
+    private final long expiryNanos;
+
+    /** id到写入时间 */
+    private final LinkedHashMap<Long, Long> recent = new LinkedHashMap<>();
+
+    private long[] current;
+    private long[] previous;
+    private long rotatedAt;
+
+    /** 最近一次因容量淘汰精确表的时间，从未淘汰时为null */
+    private Long lastEvictedAt;
+
+    public SeenCache(final int capacity, final long expiryNanos) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Seen cache capacity must be positive: " + capacity);
+        }
+        if (expiryNanos <= 0) {
+            throw new IllegalArgumentException("Seen cache expiry must be positive: " + expiryNanos);
+        }
+        this.capacity = capacity;
+        this.expiryNanos = expiryNanos;
+        final int words = Math.max(1, (int) (((long) capacity * BLOOM_CAPACITY_FACTOR * BITS_PER_ENTRY + 63) / 64));
+        this.current = new long[words];
+        this.previous = new long[words];
+        this.rotatedAt = System.nanoTime();
+    }
+
+    /**
+     * 记录id，返回是否是第一次见到
+     */
+    public synchronized boolean markSeen(final long id) {
+        final long now = System.nanoTime();
+        expire(now);
+
+        if (recent.containsKey(id)) {
+            return false;
+        }
+        if (mightContain(id) && lastEvictedAt != null && now - lastEvictedAt < expiryNanos) {
+            return false;
+        }
+
+        recent.put(id, now);
+        add(current, id);
+        if (recent.size() > capacity) {
+            final Iterator<Long> eldest = recent.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+            lastEvictedAt = now;
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return recent.size();
+    }
+
+    private void expire(final long now) {
+        final Iterator<Map.Entry<Long, Long>> iterator = recent.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue() < expiryNanos) {
+                break;
+            }
+            iterator.remove();
+        }
+        //两代过滤器合起来覆盖一个保留时间
+        if (now - rotatedAt >= expiryNanos / 2) {
+            final long[] cleared = previous;
+            Arrays.fill(cleared, 0L);
+            previous = current;
+            current = cleared;
+            rotatedAt = now;
+        }
+    }
+
+    private boolean mightContain(final long id) {
+        return contains(current, id) || contains(previous, id);
+    }
+
+    private static void add(final long[] bits, final long id) {
+        final long hash = mix(id);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long size = (long) bits.length * 64;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            final long bit = Math.floorMod(h1 + (long) i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean contains(final long[] bits, final long id) {
+        final long hash = mix(id);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long size = (long) bits.length * 64;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            final long bit = Math.floorMod(h1 + (long) i * h2, size);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * id可能是调用方构造的连续值，先打散再取哈希
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
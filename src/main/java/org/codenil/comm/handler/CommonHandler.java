@@ -3,9 +3,10 @@ package org.codenil.comm.handler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
-import org.codenil.comm.connections.PeerConnection;
+import org.codenil.comm.connections.AbstractPeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
 import org.codenil.comm.message.MessageCodes;
+import org.codenil.comm.message.PingMessage;
 import org.codenil.comm.message.PongMessage;
 import org.codenil.comm.message.RawMessage;
 import org.slf4j.Logger;
@@ -18,11 +19,11 @@ public class CommonHandler extends SimpleChannelInboundHandler<RawMessage> {
     private static final Logger logger = LoggerFactory.getLogger(CommonHandler.class);
 
     private final AtomicBoolean waitingForPong;
-    private final PeerConnection connection;
+    private final AbstractPeerConnection connection;
     private final PeerConnectionEvents connectionEvents;
 
     public CommonHandler(
-            final PeerConnection connection,
+            final AbstractPeerConnection connection,
             final PeerConnectionEvents connectionEvents,
             final AtomicBoolean waitingForPong) {
         this.connection = connection;
@@ -33,18 +34,32 @@ public class CommonHandler extends SimpleChannelInboundHandler<RawMessage> {
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final RawMessage originalMessage) {
         logger.debug("Received a message from {}", originalMessage.code());
+        //响应只交给发起请求的一方，不分发给订阅者
+        if (originalMessage.isResponse()) {
+            if (!connection.handleResponse(originalMessage)) {
+                logger.debug("Dropped response {} from {} without pending request",
+                        originalMessage.correlationId(), connection.remoteIdentifier());
+            }
+            return;
+        }
         switch (originalMessage.code()) {
             case MessageCodes.PING:
                 logger.trace("Received Wire PING");
                 try {
-                    connection.send(PongMessage.get());
+                    connection.send(PongMessage.create(originalMessage.data()));
                 } catch (Exception e) {
                     // Nothing to do
                 }
                 break;
             case MessageCodes.PONG:
                 logger.trace("Received Wire PONG");
-                waitingForPong.set(false);
+                //只统计回应本端PING的PONG，旧版本节点的PONG不带时间戳
+                if (waitingForPong.getAndSet(false)) {
+                    final Long sentAt = PingMessage.timestamp(originalMessage.data());
+                    if (sentAt != null) {
+                        connection.rttStats().record(System.nanoTime() - sentAt);
+                    }
+                }
                 break;
             case MessageCodes.DISCONNECT:
                 try {
@@ -55,13 +70,20 @@ public class CommonHandler extends SimpleChannelInboundHandler<RawMessage> {
                 connection.terminateConnection();
         }
 
+        //全量订阅者之后按code路由，ByteBufMessage在channelRead0返回后由SimpleChannelInboundHandler释放
         connectionEvents.dispatchMessage(connection, originalMessage);
     }
 
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        connection.dispatchWritabilityChanged(ctx.channel().isWritable());
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable throwable) {
         logger.error("Error:", throwable);
-        connectionEvents.dispatchDisconnect(connection);
-        ctx.close();
+        //断开事件只由terminateConnection派发一次，关闭后的closeFuture回调不会重复派发
+        connection.terminateConnection();
     }
 }
@@ -2,18 +2,27 @@ package org.codenil.comm.handler;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.DecoderException;
-import io.netty.handler.timeout.IdleStateHandler;
 
+import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.connections.KeepAlive;
 import org.codenil.comm.connections.PeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
+import org.codenil.comm.connections.TimeoutService;
+import org.codenil.comm.handshake.Capabilities;
+import org.codenil.comm.message.ByteBufMessage;
 import org.codenil.comm.message.DisconnectMessage;
 import org.codenil.comm.message.DisconnectReason;
 import org.codenil.comm.message.MessageCodes;
 import org.codenil.comm.message.RawMessage;
 import org.codenil.comm.netty.NettyPeerConnection;
+import org.codenil.comm.serialize.FrameWriter;
+import org.codenil.comm.serialize.SnappyCompressor;
+import org.codenil.comm.serialize.VarintFrameWriter;
+import org.codenil.comm.serialize.Varints;
+import org.codenil.comm.serialize.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,74 +39,243 @@ public class MessageFrameDecoder extends ByteToMessageDecoder {
 
     private final CompletableFuture<PeerConnection> connectionFuture;
     private final PeerConnectionEvents connectionEvents;
+    private final NetworkConfig config;
+    private final int maxFrameLength;
+
+    /** 握手阶段协商的连接能力 */
+    private final int capabilities;
+
+    /** 握手阶段协商的协议版本 */
+    private final String version;
+
+    /** 是否使用2.0版本的变长整数帧 */
+    private final boolean varintFraming;
+
+    /** 共用的超时服务，交给连接和保活处理器 */
+    private final TimeoutService timeouts;
 
     private boolean hellosExchanged;
 
+    /** 收到非法帧后丢弃后续所有字节，等待连接关闭 */
+    private boolean discarding;
+
     public MessageFrameDecoder(
+            final NetworkConfig config,
             final PeerConnectionEvents connectionEvents,
-            final CompletableFuture<PeerConnection> connectionFuture) {
+            final CompletableFuture<PeerConnection> connectionFuture,
+            final int capabilities,
+            final String version,
+            final TimeoutService timeouts) {
+        this.config = config;
         this.connectionEvents = connectionEvents;
         this.connectionFuture = connectionFuture;
+        this.maxFrameLength = config.maxFrameLength();
+        this.capabilities = capabilities;
+        this.version = version;
+        this.varintFraming = Version.isVarintFraming(version);
+        this.timeouts = timeouts;
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf byteBuf, List<Object> out) throws Exception {
+        if (discarding) {
+            byteBuf.skipBytes(byteBuf.readableBytes());
+            return;
+        }
+
+        // 一次解码尽可能多的完整帧
+        while (byteBuf.isReadable()) {
+            ByteBufMessage message = varintFraming ? readVarintFrame(ctx, byteBuf) : readFrame(ctx, byteBuf);
+            if (message == null) {
+                return; // 不足一个完整帧，等待更多数据
+            }
+
+            if (hellosExchanged) {
+                out.add(message);
+                continue;
+            }
+
+            try {
+                handleBeforeHello(ctx, message);
+            } finally {
+                message.release();
+            }
+            if (!hellosExchanged) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 1.0帧：固定4字节的长度字段，最高三位为压缩、数字id和响应标志
+     */
+    private ByteBufMessage readFrame(final ChannelHandlerContext ctx, final ByteBuf byteBuf) throws IOException {
         if (byteBuf.readableBytes() < 4) {
-            return; // 不足4字节长度字段，等待更多数据
-        }
-        byteBuf.readerIndex(0);
-
-        // 读取协议头：消息总长度
-        int totalLength = byteBuf.readInt();
-
-        if (byteBuf.readableBytes() < totalLength - 4) {
-            return; // 不足消息总长度，等待更多数据
-        }
-
-        // 读取payload
-
-        // 读取id
-        int idLength = byteBuf.readInt();
-        byte[] idBytes = new byte[idLength];
-        byteBuf.readBytes(idBytes);
-        String id = new String(idBytes, StandardCharsets.UTF_8);
-
-        // 读取code
-        int code = byteBuf.readInt();
-
-        // 读取data
-        int dataLength = byteBuf.readInt();;
-        byte[] data = new byte[dataLength];
-        byteBuf.readBytes(data);
-
-        // 创建消息对象
-        RawMessage message = RawMessage.create(code);
-        message.setRequestId(id);
-        message.setData(data);
-
-        if (hellosExchanged) {
-            out.add(message);
-        } else if (message.code() == MessageCodes.HELLO) {
-            hellosExchanged = true;
-
-            String remoteIdentifier = new String(message.data());
-            final PeerConnection connection = new NettyPeerConnection(ctx, remoteIdentifier, connectionEvents);
-
-            /*
-             * 如果收到的消息是Hello消息
-             * 添加一个空闲链接检测处理器
-             * 添加一个连接保活处理器，检测到连接空闲后发送一个Ping消息
-             * 通用消息处理器，处理所有的协议消息
-             * 添加一个消息封帧处理器
-             */
-            final AtomicBoolean waitingForPong = new AtomicBoolean(false);
-            ctx.channel()
-                    .pipeline()
-                    .addLast("IdleState", new IdleStateHandler(15, 0, 0))
-                    .addLast("KeepAlive", new KeepAlive(connection, waitingForPong))
-                    .addLast("Common", new CommonHandler(connection, connectionEvents, waitingForPong))
-                    .addLast("FrameEncoder", new MessageFrameEncoder());
-            connectionFuture.complete(connection);
+            return null;
+        }
+        // 读取协议头：消息总长度，包含长度字段本身，最高位为压缩标志
+        int header = byteBuf.getInt(byteBuf.readerIndex());
+        boolean compressed = (header & FrameWriter.COMPRESSED_FLAG) != 0;
+        boolean numericId = (header & FrameWriter.NUMERIC_ID_FLAG) != 0;
+        boolean response = (header & FrameWriter.RESPONSE_FLAG) != 0;
+        int totalLength = header & FrameWriter.LENGTH_MASK;
+        int minLength = compressed ? 5
+                : numericId ? FrameWriter.MIN_NUMERIC_FRAME_LENGTH : FrameWriter.MIN_FRAME_LENGTH;
+        checkFrameLength(byteBuf, totalLength, minLength);
+        checkFlags(byteBuf, compressed, numericId);
+
+        if (byteBuf.readableBytes() < totalLength) {
+            return null;
+        }
+        byteBuf.skipBytes(4);
+
+        // 帧体直接切片，id和data不拷贝，消息分发完成后由CommonHandler释放
+        ByteBuf frame = compressed
+                ? uncompress(ctx, byteBuf, totalLength - 4, FrameWriter.MIN_FRAME_LENGTH - 4)
+                : byteBuf.readRetainedSlice(totalLength - 4);
+        try {
+            ByteBufMessage message = numericId ? ByteBufMessage.wrapNumeric(frame) : ByteBufMessage.wrap(frame);
+            message.setResponse(response);
+            return message;
+        } catch (final RuntimeException e) {
+            frame.release();
+            discard(byteBuf);
+            throw e;
+        }
+    }
+
+    /**
+     * 2.0帧：变长整数的帧体长度，随后是1字节flags
+     */
+    private ByteBufMessage readVarintFrame(final ChannelHandlerContext ctx, final ByteBuf byteBuf) throws IOException {
+        int lengthSize;
+        try {
+            lengthSize = Varints.peekVarIntSize(byteBuf, byteBuf.readerIndex());
+        } catch (final IllegalArgumentException e) {
+            discard(byteBuf);
+            throw e;
+        }
+        if (lengthSize == 0) {
+            return null;
+        }
+        int bodyLength = Varints.getVarInt(byteBuf, byteBuf.readerIndex());
+        checkFrameLength(byteBuf, bodyLength, VarintFrameWriter.MIN_BODY_LENGTH);
+        if (byteBuf.readableBytes() < lengthSize + bodyLength) {
+            return null;
+        }
+
+        int flags = byteBuf.getUnsignedByte(byteBuf.readerIndex() + lengthSize);
+        if ((flags & ~VarintFrameWriter.KNOWN_FLAGS) != 0) {
+            discard(byteBuf);
+            throw new IllegalArgumentException("Unknown frame flags " + flags);
+        }
+        boolean compressed = (flags & VarintFrameWriter.COMPRESSED_FLAG) != 0;
+        boolean numericId = (flags & VarintFrameWriter.NUMERIC_ID_FLAG) != 0;
+        boolean response = (flags & VarintFrameWriter.RESPONSE_FLAG) != 0;
+        checkFlags(byteBuf, compressed, numericId);
+        byteBuf.skipBytes(lengthSize + 1);
+
+        ByteBuf frame = compressed
+                ? uncompress(ctx, byteBuf, bodyLength - 1, VarintFrameWriter.MIN_BODY_LENGTH - 1)
+                : byteBuf.readRetainedSlice(bodyLength - 1);
+        try {
+            ByteBufMessage message = ByteBufMessage.wrapVarint(frame, numericId);
+            message.setResponse(response);
+            return message;
+        } catch (final RuntimeException e) {
+            frame.release();
+            discard(byteBuf);
+            throw e;
+        }
+    }
+
+    private void checkFrameLength(final ByteBuf byteBuf, final int length, final int minLength) {
+        if (length < minLength || length > maxFrameLength) {
+            discard(byteBuf);
+            throw new IllegalArgumentException(String.format(
+                    "Invalid frame length %d, expected between %d and %d",
+                    length, minLength, maxFrameLength));
+        }
+    }
+
+    private void checkFlags(final ByteBuf byteBuf, final boolean compressed, final boolean numericId) {
+        if (compressed && !Capabilities.has(capabilities, Capabilities.SNAPPY)) {
+            discard(byteBuf);
+            throw new IllegalArgumentException("Received compressed frame without negotiating compression");
+        }
+        if (numericId && !Capabilities.has(capabilities, Capabilities.NUMERIC_REQUEST_ID)) {
+            discard(byteBuf);
+            throw new IllegalArgumentException("Received numeric request id without negotiating it");
+        }
+    }
+
+    /**
+     * 解压帧体到新缓冲区，解压前先校验原始长度，避免按伪造的长度分配内存
+     */
+    private ByteBuf uncompress(
+            final ChannelHandlerContext ctx,
+            final ByteBuf byteBuf,
+            final int compressedLength,
+            final int minLength) throws IOException {
+        ByteBuf compressedBody = byteBuf.readSlice(compressedLength);
+        int uncompressedLength = SnappyCompressor.uncompressedLength(compressedBody);
+        if (uncompressedLength < minLength || uncompressedLength > maxFrameLength) {
+            discard(byteBuf);
+            throw new IllegalArgumentException("Invalid uncompressed frame length " + uncompressedLength);
+        }
+
+        ByteBuf frame = ctx.alloc().buffer(uncompressedLength);
+        try {
+            SnappyCompressor.uncompress(compressedBody, frame, uncompressedLength);
+        } catch (final IOException e) {
+            frame.release();
+            discard(byteBuf);
+            throw new IllegalArgumentException("Unable to uncompress frame", e);
+        }
+        return frame;
+    }
+
+    private void discard(final ByteBuf byteBuf) {
+        discarding = true;
+        byteBuf.skipBytes(byteBuf.readableBytes());
+    }
+
+    /**
+     * 建立连接：创建连接对象，补齐消息处理链，之后收到的帧都交给后续处理器
+     * 收到Hello消息时调用；快速握手已在握手消息中交换了标识，由握手处理器在替换为本处理器后直接调用
+     */
+    public void establish(final ChannelHandlerContext ctx, final String remoteIdentifier) {
+        hellosExchanged = true;
+
+        final NettyPeerConnection connection = new NettyPeerConnection(ctx, remoteIdentifier, connectionEvents,
+                timeouts, config.flushThresholdBytes());
+        ctx.channel().attr(NettyPeerConnection.CONNECTION).set(connection);
+
+        /*
+         * 添加一个连接保活处理器，检测到连接空闲后发送一个带时间戳的Ping消息，空闲时间随测得的RTT调整
+         * 通用消息处理器，处理所有的协议消息
+         * 如果协商了压缩，添加一个帧压缩处理器
+         * 添加一个消息封帧处理器
+         */
+        final AtomicBoolean waitingForPong = new AtomicBoolean(false);
+        ChannelPipeline pipeline = ctx.channel()
+                .pipeline()
+                .addLast("KeepAlive", new KeepAlive(connection, waitingForPong, timeouts,
+                        config.keepAliveMinInterval(), config.keepAliveMaxInterval()))
+                .addLast("Common", new CommonHandler(connection, connectionEvents, waitingForPong));
+        //协商了压缩时，在封帧之后压缩整帧
+        if (Capabilities.has(capabilities, Capabilities.SNAPPY)) {
+            pipeline.addLast("Compressor", new SnappyFrameEncoder(config.compressionThreshold(), version,
+                    config.allocatorType().preferDirect()));
+        }
+        pipeline.addLast("FrameEncoder", new MessageFrameEncoder(capabilities, version,
+                config.allocatorType().preferDirect()));
+        connectionFuture.complete(connection);
+    }
+
+    private void handleBeforeHello(final ChannelHandlerContext ctx, final ByteBufMessage message) {
+        if (message.code() == MessageCodes.HELLO) {
+            establish(ctx, new String(message.data(), StandardCharsets.UTF_8));
         } else if (message.code() == MessageCodes.DISCONNECT) {
             logger.debug("Disconnected before sending HELLO.");
             ctx.close();
@@ -1,31 +1,130 @@
 package org.codenil.comm.handler;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import org.codenil.comm.handshake.Capabilities;
 import org.codenil.comm.message.RawMessage;
-import org.codenil.comm.serialize.SerializeHelper;
-
-import java.nio.charset.StandardCharsets;
-import java.util.Optional;
+import org.codenil.comm.serialize.FrameWriter;
+import org.codenil.comm.serialize.VarintFrameWriter;
+import org.codenil.comm.serialize.Version;
 
 public class MessageFrameEncoder extends MessageToByteEncoder<RawMessage> {
 
-    public MessageFrameEncoder() {}
+    /** 对端是否支持数字requestId */
+    private final boolean numericIds;
+
+    /** 是否使用2.0版本的变长整数帧 */
+    private final boolean varintFraming;
+
+    private final boolean preferDirect;
+
+    public MessageFrameEncoder() {
+        this(Capabilities.NONE);
+    }
+
+    public MessageFrameEncoder(final int capabilities) {
+        this(capabilities, Version.defaultVersion());
+    }
+
+    public MessageFrameEncoder(final int capabilities, final String version) {
+        this(capabilities, version, true);
+    }
+
+    /**
+     * @param preferDirect 是否分配堆外缓冲区，堆外缓冲区写socket时少一次拷贝
+     */
+    public MessageFrameEncoder(final int capabilities, final String version, final boolean preferDirect) {
+        super(preferDirect);
+        this.numericIds = Capabilities.has(capabilities, Capabilities.NUMERIC_REQUEST_ID);
+        this.varintFraming = Version.isVarintFraming(version);
+        this.preferDirect = preferDirect;
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(
+            final ChannelHandlerContext ctx,
+            final RawMessage msg,
+            final boolean preferDirect) {
+        //按帧长度一次分配，避免写入过程中扩容
+        final int frameLength = frameLength(msg);
+        return preferDirect
+                ? ctx.alloc().ioBuffer(frameLength)
+                : ctx.alloc().heapBuffer(frameLength);
+    }
 
     @Override
     protected void encode(
             final ChannelHandlerContext ctx,
             final RawMessage msg,
             final ByteBuf out) {
-        byte[] idBytes = Optional.ofNullable(msg.requestId()).orElse("").getBytes(StandardCharsets.UTF_8);
-        SerializeHelper builder = new SerializeHelper();
-        ByteBuf buf = builder.writeBytes(idBytes)
-                .writeInt(msg.code())
-                .writeBytes(msg.data())
-                .build();
+        writeFrame(msg, out);
+    }
+
+    /**
+     * 在连接之外编码一个完整的帧，广播时编码一次后写给多个连接
+     */
+    public ByteBuf encode(final ByteBufAllocator alloc, final RawMessage msg) {
+        final int frameLength = frameLength(msg);
+        final ByteBuf out = preferDirect ? alloc.ioBuffer(frameLength) : alloc.heapBuffer(frameLength);
+        try {
+            writeFrame(msg, out);
+        } catch (final RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
+    public boolean varintFraming() {
+        return varintFraming;
+    }
+
+    public boolean numericIds() {
+        return numericIds;
+    }
+
+    private void writeFrame(final RawMessage msg, final ByteBuf out) {
+        if (varintFraming) {
+            final int flags = msg.isResponse() ? VarintFrameWriter.RESPONSE_FLAG : 0;
+            if (useNumericId(msg)) {
+                VarintFrameWriter.writeFrame(out, msg.correlationId(), msg.code(), msg.data(), flags);
+            } else {
+                VarintFrameWriter.writeFrame(out, requestId(msg), msg.code(), msg.data(), flags);
+            }
+            return;
+        }
+        final int flags = msg.isResponse() ? FrameWriter.RESPONSE_FLAG : 0;
+        if (useNumericId(msg)) {
+            FrameWriter.writeFrame(out, msg.correlationId(), msg.code(), msg.data(), flags);
+        } else {
+            FrameWriter.writeFrame(out, requestId(msg), msg.code(), msg.data(), flags);
+        }
+    }
+
+    private int frameLength(final RawMessage msg) {
+        if (varintFraming) {
+            return useNumericId(msg)
+                    ? VarintFrameWriter.frameLength(msg.correlationId(), msg.code(), msg.data())
+                    : VarintFrameWriter.frameLength(requestId(msg), msg.code(), msg.data());
+        }
+        return useNumericId(msg)
+                ? FrameWriter.frameLength(msg.data())
+                : FrameWriter.frameLength(requestId(msg), msg.data());
+    }
+
+    private boolean useNumericId(final RawMessage msg) {
+        return numericIds && msg.correlationId() != 0;
+    }
 
-        out.writeBytes(buf);
-        buf.release();
+    /**
+     * 对端不支持数字id时，以十进制字符串发送
+     */
+    private static String requestId(final RawMessage msg) {
+        if (msg.requestId() == null && msg.correlationId() != 0) {
+            return Long.toUnsignedString(msg.correlationId());
+        }
+        return msg.requestId();
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,22 @@
 package org.codenil.comm.handler;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import org.codenil.comm.handshake.PlainMessage;
 import org.codenil.comm.message.MessageType;
-import org.codenil.comm.serialize.SerializeHelper;
+import org.codenil.comm.serialize.FrameWriter;
+import org.codenil.comm.serialize.Version;
+
+import java.nio.charset.StandardCharsets;
 
 public class MessageHandler {
     public static byte[] buildMessage(final PlainMessage message) {
-        SerializeHelper builder = new SerializeHelper();
-        ByteBuf buf = builder.writeInt(message.messageType().getValue())
-                .writeInt(message.code())
-                .writeBytes(message.data()).build();
-
-        byte[] result = new byte[buf.readableBytes()];
-        buf.readBytes(result);
-        buf.release();
+        String version = message.version() == null ? Version.defaultVersion() : message.version();
+        byte[] result = new byte[FrameWriter.handshakeLength(version, message.data())];
+        ByteBuf buf = Unpooled.wrappedBuffer(result).clear();
+        FrameWriter.writeHandshake(buf, version,
+                message.messageType().getValue(), message.code(), message.data());
         return result;
     }
 
@@ -25,14 +27,35 @@ public class MessageHandler {
         return buildMessage(new PlainMessage(messageType, code, data));
     }
 
+    public static byte[] buildMessage(
+            final String version,
+            final MessageType messageType,
+            final int code,
+            final byte[] data) {
+        return buildMessage(new PlainMessage(version, messageType, code, data));
+    }
+
+    /**
+     * 直接写入分配器分配的缓冲区
+     */
+    public static ByteBuf buildMessage(
+            final ByteBufAllocator allocator,
+            final String version,
+            final MessageType messageType,
+            final int code,
+            final byte[] data) {
+        ByteBuf buf = allocator.buffer(FrameWriter.handshakeLength(version, data));
+        FrameWriter.writeHandshake(buf, version, messageType.getValue(), code, data);
+        return buf;
+    }
+
     public static PlainMessage parseMessage(final ByteBuf buf) {
         PlainMessage ret = null;
 
         buf.readerIndex(0);
 
-        //跳过版本
         int versionLength = buf.readInt();
-        buf.skipBytes(versionLength);
+        String version = buf.readCharSequence(versionLength, StandardCharsets.UTF_8).toString();
 
         int payloadLength = buf.readInt();
         if(payloadLength < 8) {
@@ -45,7 +68,7 @@ public class MessageHandler {
         byte[] data = new byte[dataLength];
         buf.readBytes(data);
 
-        ret = new PlainMessage(MessageType.forNumber(messageType), code, data);
+        ret = new PlainMessage(version, MessageType.forNumber(messageType), code, data);
         return ret;
     }
 }
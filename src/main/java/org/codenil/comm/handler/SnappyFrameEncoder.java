@@ -0,0 +1,127 @@
+package org.codenil.comm.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import org.codenil.comm.serialize.FrameWriter;
+import org.codenil.comm.serialize.SnappyCompressor;
+import org.codenil.comm.serialize.VarintFrameWriter;
+import org.codenil.comm.serialize.Varints;
+import org.codenil.comm.serialize.Version;
+
+import java.util.List;
+
+/**
+ * 帧压缩处理器，位于FrameEncoder之后
+ * 帧体超过阈值时用Snappy压缩，并置压缩标志位：1.0帧在长度字段上，2.0帧在flags字节上
+ * 压缩后没有变小的帧原样发送
+ */
+public class SnappyFrameEncoder extends MessageToMessageEncoder<ByteBuf> {
+
+    private final int threshold;
+
+    /** 是否使用2.0版本的变长整数帧 */
+    private final boolean varintFraming;
+
+    /** 是否分配堆外缓冲区 */
+    private final boolean preferDirect;
+
+    public SnappyFrameEncoder(final int threshold) {
+        this(threshold, Version.defaultVersion());
+    }
+
+    public SnappyFrameEncoder(final int threshold, final String version) {
+        this(threshold, version, true);
+    }
+
+    public SnappyFrameEncoder(final int threshold, final String version, final boolean preferDirect) {
+        this.threshold = threshold;
+        this.varintFraming = Version.isVarintFraming(version);
+        this.preferDirect = preferDirect;
+    }
+
+    @Override
+    protected void encode(
+            final ChannelHandlerContext ctx,
+            final ByteBuf frame,
+            final List<Object> out) throws Exception {
+        out.add(compress(ctx.alloc(), frame));
+    }
+
+    /**
+     * 压缩一个完整的帧，返回压缩后的新帧，不需要压缩时返回retain后的原帧
+     * 不依赖连接状态，广播时可以在连接之外压缩一次后共用
+     */
+    public ByteBuf compress(final ByteBufAllocator alloc, final ByteBuf frame) throws Exception {
+        if (varintFraming) {
+            return compressVarintFrame(alloc, frame);
+        }
+        final int bodyLength = frame.readableBytes() - 4;
+        if (bodyLength < threshold) {
+            return frame.retain();
+        }
+
+        final ByteBuf body = frame.slice(frame.readerIndex() + 4, bodyLength);
+        final ByteBuf compressed = allocate(alloc, 4 + SnappyCompressor.maxCompressedLength(bodyLength));
+        try {
+            compressed.writeInt(0);
+            final int compressedLength = SnappyCompressor.compress(body, compressed);
+            if (compressedLength >= bodyLength) {
+                compressed.release();
+                return frame.retain();
+            }
+            //保留原帧长度字段上的其他标志位
+            final int flags = frame.getInt(frame.readerIndex()) & ~FrameWriter.LENGTH_MASK;
+            compressed.setInt(0, (4 + compressedLength) | flags | FrameWriter.COMPRESSED_FLAG);
+        } catch (final Exception e) {
+            compressed.release();
+            throw e;
+        }
+        return compressed;
+    }
+
+    /**
+     * 2.0帧：压缩flags之后的内容
+     * 长度字段的字节数取决于压缩结果，先按最大长度预留，写完后把读索引移到长度字段起点
+     */
+    private ByteBuf compressVarintFrame(
+            final ByteBufAllocator alloc,
+            final ByteBuf frame) throws Exception {
+        final int lengthSize = Varints.peekVarIntSize(frame, frame.readerIndex());
+        final int flagsIndex = frame.readerIndex() + lengthSize;
+        final int bodyLength = frame.writerIndex() - flagsIndex - 1;
+        if (bodyLength < threshold) {
+            return frame.retain();
+        }
+
+        final ByteBuf body = frame.slice(flagsIndex + 1, bodyLength);
+        final int headerLength = Varints.MAX_VARINT_BYTES + 1;
+        final ByteBuf compressed = allocate(alloc, headerLength + SnappyCompressor.maxCompressedLength(bodyLength));
+        try {
+            compressed.writerIndex(headerLength);
+            final int compressedLength = SnappyCompressor.compress(body, compressed);
+            if (compressedLength >= bodyLength) {
+                compressed.release();
+                return frame.retain();
+            }
+            final int start = Varints.MAX_VARINT_BYTES - Varints.sizeOf(1 + compressedLength);
+            Varints.setVarInt(compressed, start, 1 + compressedLength);
+            compressed.setByte(Varints.MAX_VARINT_BYTES,
+                    frame.getByte(flagsIndex) | VarintFrameWriter.COMPRESSED_FLAG);
+            compressed.readerIndex(start);
+        } catch (final Exception e) {
+            compressed.release();
+            throw e;
+        }
+        return compressed;
+    }
+
+    public int threshold() {
+        return threshold;
+    }
+
+    private ByteBuf allocate(final ByteBufAllocator alloc, final int capacity) {
+        return preferDirect ? alloc.ioBuffer(capacity) : alloc.heapBuffer(capacity);
+    }
+}
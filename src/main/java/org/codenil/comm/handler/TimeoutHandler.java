@@ -2,32 +2,51 @@ package org.codenil.comm.handler;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.util.Timeout;
 
+import org.codenil.comm.connections.TimeoutService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Supplier;
 
+/**
+ * 连接建立超时，在共用的超时服务中登记，连接建立或关闭后取消
+ */
 public class TimeoutHandler<C extends Channel> extends ChannelInitializer<C> {
-    private final Supplier<Boolean> condition;
+    private final CompletableFuture<?> completion;
     private final int timeoutInSeconds;
     private final OnTimeoutCallback callback;
+    private final TimeoutService timeouts;
 
     public TimeoutHandler(
-            final Supplier<Boolean> condition,
+            final CompletableFuture<?> completion,
             final int timeoutInSeconds,
-            final OnTimeoutCallback callback) {
-        this.condition = condition;
+            final OnTimeoutCallback callback,
+            final TimeoutService timeouts) {
+        this.completion = completion;
         this.timeoutInSeconds = timeoutInSeconds;
         this.callback = callback;
+        this.timeouts = timeouts;
     }
 
     @Override
     protected void initChannel(final C ch) throws Exception {
-        ch.eventLoop().schedule(() -> {
-                if (!condition.get()) {
+        final Timeout timeout;
+        try {
+            timeout = timeouts.schedule(ch.eventLoop(), () -> {
+                if (!completion.isDone()) {
                     callback.invoke();
                     ch.close();
                 }
             }, timeoutInSeconds, TimeUnit.SECONDS);
+        } catch (final RejectedExecutionException e) {
+            callback.invoke();
+            ch.close();
+            return;
+        }
+        completion.whenComplete((_, _) -> timeout.cancel());
+        ch.closeFuture().addListener(_ -> timeout.cancel());
     }
 
     @FunctionalInterface
@@ -35,4 +54,3 @@ public class TimeoutHandler<C extends Channel> extends ChannelInitializer<C> {
         void invoke();
     }
 }
-
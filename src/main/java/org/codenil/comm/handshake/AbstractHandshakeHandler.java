@@ -3,15 +3,16 @@ package org.codenil.comm.handshake;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.MessageToByteEncoder;
 
+import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.connections.PeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
+import org.codenil.comm.connections.TimeoutService;
 import org.codenil.comm.handler.MessageFrameDecoder;
+import org.codenil.comm.handler.MessageFrameEncoder;
 import org.codenil.comm.message.HelloMessage;
 import org.codenil.comm.message.MessageCodes;
 import org.codenil.comm.message.RawMessage;
-import org.codenil.comm.serialize.SerializeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +24,7 @@ public abstract class AbstractHandshakeHandler extends SimpleChannelInboundHandl
 
     private static final Logger logger = LoggerFactory.getLogger(AbstractHandshakeHandler.class);
 
+    private final NetworkConfig config;
     private final CompletableFuture<PeerConnection> connectionFuture;
     private final PeerConnectionEvents connectionEvents;
 
@@ -31,24 +33,46 @@ public abstract class AbstractHandshakeHandler extends SimpleChannelInboundHandl
 
     protected final Handshaker handshaker;
 
+    /** 共用的超时服务，交给建立好的连接 */
+    private final TimeoutService timeouts;
+
     protected AbstractHandshakeHandler(
+            final NetworkConfig config,
             final String selfIdentifier,
             final CompletableFuture<PeerConnection> connectionFuture,
             final PeerConnectionEvents connectionEvents,
-            final Handshaker handshaker) {
+            final Handshaker handshaker,
+            final TimeoutService timeouts) {
+        this.config = config;
         this.selfIdentifier = selfIdentifier;
         this.connectionFuture = connectionFuture;
         this.connectionEvents = connectionEvents;
         this.handshaker = handshaker;
+        this.timeouts = timeouts;
     }
 
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final ByteBuf msg) {
         final Optional<ByteBuf> nextMsg = nextHandshakeMessage(msg);
+        final boolean succeeded = handshaker.getStatus() == HandshakeStatus.SUCCESS;
+        final String remoteIdentifier = succeeded ? handshaker.remoteIdentifier() : null;
 
-        if (nextMsg.isPresent()) {
+        if (remoteIdentifier != null) {
+            /*
+             * 快速握手：握手消息已带上双方标识，不再交换Hello消息
+             * 应答方写出PONG后立即建立连接，建立连接时写出的消息排在PONG之后，一起flush
+             * 发起方收到PONG后立即建立连接，与PONG一起到达的消息交给消息解码器
+             */
+            nextMsg.ifPresent(ctx::write);
+            final MessageFrameDecoder decoder = new MessageFrameDecoder(config, connectionEvents, connectionFuture,
+                    handshaker.capabilities(), handshaker.version(), timeouts);
+            ctx.channel().pipeline().replace(this, "FrameDecoder", decoder);
+            decoder.establish(ctx.channel().pipeline().context(decoder), remoteIdentifier);
+            ctx.flush();
+            fireRemaining(ctx, msg);
+        } else if (nextMsg.isPresent()) {
             ctx.writeAndFlush(nextMsg.get());
-        } else if (handshaker.getStatus() != HandshakeStatus.SUCCESS) {
+        } else if (!succeeded) {
             logger.debug("waiting for more bytes");
         } else {
             /*
@@ -60,8 +84,11 @@ public abstract class AbstractHandshakeHandler extends SimpleChannelInboundHandl
              */
             ctx.channel()
                     .pipeline()
-                    .replace(this, "FrameDecoder", new MessageFrameDecoder(connectionEvents, connectionFuture))
-                    .addBefore("FrameDecoder", "validate", new FirstMessageFrameEncoder());
+                    .replace(this, "FrameDecoder", new MessageFrameDecoder(config, connectionEvents, connectionFuture,
+                            handshaker.capabilities(), handshaker.version(), timeouts))
+                    .addBefore("FrameDecoder", "validate",
+                            new FirstMessageFrameEncoder(handshaker.capabilities(), handshaker.version(),
+                                    config.allocatorType().preferDirect()));
 
             /*
              * 替换完编解码器后发送Hello消息
@@ -83,6 +110,16 @@ public abstract class AbstractHandshakeHandler extends SimpleChannelInboundHandl
         }
     }
 
+    /**
+     * 握手消息之后已经读到的字节交给新的解码器
+     */
+    private static void fireRemaining(final ChannelHandlerContext ctx, final ByteBuf msg) {
+        if (msg.isReadable()) {
+            msg.retain();
+            ctx.fireChannelRead(msg);
+        }
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable throwable) {
         logger.trace("Handshake error:", throwable);
@@ -93,9 +130,14 @@ public abstract class AbstractHandshakeHandler extends SimpleChannelInboundHandl
     protected abstract Optional<ByteBuf> nextHandshakeMessage(ByteBuf msg);
 
     /** Ensures that wire hello message is the first message written. */
-    private static class FirstMessageFrameEncoder extends MessageToByteEncoder<RawMessage> {
+    private static class FirstMessageFrameEncoder extends MessageFrameEncoder {
 
-        private FirstMessageFrameEncoder() {}
+        private FirstMessageFrameEncoder(
+                final int capabilities,
+                final String version,
+                final boolean preferDirect) {
+            super(capabilities, version, preferDirect);
+        }
 
         @Override
         protected void encode(
@@ -105,16 +147,7 @@ public abstract class AbstractHandshakeHandler extends SimpleChannelInboundHandl
             if (msg.code() != MessageCodes.HELLO) {
                 throw new IllegalStateException("First wire message sent wasn't a HELLO.");
             }
-            byte[] idBytes = Optional.ofNullable(msg.requestId()).orElse("").getBytes(StandardCharsets.UTF_8);
-
-            SerializeHelper builder = new SerializeHelper();
-            ByteBuf buf = builder.writeBytes(idBytes)
-                    .writeInt(msg.code())
-                    .writeBytes(msg.data())
-                    .build();
-
-            out.writeBytes(buf);
-            buf.release();
+            super.encode(context, msg, out);
             context.pipeline().remove(this);
         }
     }
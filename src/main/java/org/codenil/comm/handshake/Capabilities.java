@@ -0,0 +1,25 @@
+package org.codenil.comm.handshake;
+
+/**
+ * 握手阶段协商的连接能力，按位组合
+ * 双方各自声明，最终取交集
+ */
+public class Capabilities {
+
+    public static final int NONE = 0x00;
+
+    /** 帧级Snappy压缩 */
+    public static final int SNAPPY = 0x01;
+
+    /** 8字节数字requestId */
+    public static final int NUMERIC_REQUEST_ID = 0x02;
+
+    /** 快速握手：握手消息携带节点标识，省去Hello消息的一次往返 */
+    public static final int FAST_HANDSHAKE = 0x04;
+
+    private Capabilities() {}
+
+    public static boolean has(final int capabilities, final int capability) {
+        return (capabilities & capability) == capability;
+    }
+}
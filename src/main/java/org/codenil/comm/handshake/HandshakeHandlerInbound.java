@@ -1,8 +1,10 @@
 package org.codenil.comm.handshake;
 
 import io.netty.buffer.ByteBuf;
+import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.connections.PeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
+import org.codenil.comm.connections.TimeoutService;
 
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -13,11 +15,13 @@ import java.util.concurrent.CompletableFuture;
 public class HandshakeHandlerInbound extends AbstractHandshakeHandler {
 
     public HandshakeHandlerInbound(
+            final NetworkConfig config,
             final String selfIdentifier,
             final CompletableFuture<PeerConnection> connectionFuture,
             final PeerConnectionEvents connectionEvent,
-            final Handshaker handshaker) {
-        super(selfIdentifier, connectionFuture, connectionEvent, handshaker);
+            final Handshaker handshaker,
+            final TimeoutService timeouts) {
+        super(config, selfIdentifier, connectionFuture, connectionEvent, handshaker, timeouts);
         handshaker.prepareResponder();
     }
 
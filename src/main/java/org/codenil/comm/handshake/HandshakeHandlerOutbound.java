@@ -3,8 +3,10 @@ package org.codenil.comm.handshake;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 
+import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.connections.PeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
+import org.codenil.comm.connections.TimeoutService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,11 +23,13 @@ public class HandshakeHandlerOutbound extends AbstractHandshakeHandler {
     private final ByteBuf first;
 
     public HandshakeHandlerOutbound(
+            final NetworkConfig config,
             final String selfIdentifier,
             final CompletableFuture<PeerConnection> connectionFuture,
             final PeerConnectionEvents connectionEvent,
-            final Handshaker handshaker) {
-        super(selfIdentifier, connectionFuture, connectionEvent, handshaker);
+            final Handshaker handshaker,
+            final TimeoutService timeouts) {
+        super(config, selfIdentifier, connectionFuture, connectionEvent, handshaker, timeouts);
 
         handshaker.prepareInitiator();
         this.first = handshaker.firstMessage();
@@ -15,4 +15,19 @@ public interface Handshaker {
     ByteBuf firstMessage();
 
     Optional<ByteBuf> handleMessage(ByteBuf buf);
+
+    /**
+     * 握手成功后双方协商一致的能力
+     */
+    int capabilities();
+
+    /**
+     * 握手成功后双方协商一致的协议版本，决定消息帧格式
+     */
+    String version();
+
+    /**
+     * 协商了快速握手时，握手消息中携带的对端标识，否则为null，需要等待Hello消息
+     */
+    String remoteIdentifier();
 }
@@ -1,13 +1,17 @@
 package org.codenil.comm.handshake;
 
+import com.google.common.primitives.Ints;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
 
 import org.codenil.comm.handler.MessageHandler;
 import org.codenil.comm.message.MessageType;
+import org.codenil.comm.serialize.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -20,10 +24,66 @@ public class PlainHandshaker implements Handshaker {
     private final AtomicReference<HandshakeStatus> status =
             new AtomicReference<>(HandshakeStatus.UNINITIALIZED);
 
+    /** 本端支持的能力 */
+    private final int localCapabilities;
+
+    /** 协商后的能力 */
+    private int capabilities = Capabilities.NONE;
+
+    /** 本端支持的最高协议版本 */
+    private final String localVersion;
+
+    /** 协商后的协议版本 */
+    private String version = Version.defaultVersion();
+
+    /** 握手消息的缓冲区分配器 */
+    private final ByteBufAllocator allocator;
+
+    /** 本端标识，快速握手时跟在能力字段之后发送 */
+    private final byte[] localIdentifier;
+
+    /** 快速握手时对端发来的标识 */
+    private String remoteIdentifier;
+
     private boolean initiator;
     private byte[] initiatorMsg;
     private byte[] responderMsg;
 
+    public PlainHandshaker() {
+        this(Capabilities.NONE);
+    }
+
+    public PlainHandshaker(final int localCapabilities) {
+        this(localCapabilities, Version.defaultVersion());
+    }
+
+    public PlainHandshaker(final int localCapabilities, final String localVersion) {
+        this(localCapabilities, localVersion, ByteBufAllocator.DEFAULT);
+    }
+
+    public PlainHandshaker(
+            final int localCapabilities,
+            final String localVersion,
+            final ByteBufAllocator allocator) {
+        this(localCapabilities, localVersion, allocator, null);
+    }
+
+    /**
+     * @param localIdentifier 本端标识，为null时不声明快速握手
+     */
+    public PlainHandshaker(
+            final int localCapabilities,
+            final String localVersion,
+            final ByteBufAllocator allocator,
+            final String localIdentifier) {
+        this.localCapabilities = localIdentifier == null
+                ? localCapabilities & ~Capabilities.FAST_HANDSHAKE
+                : localCapabilities;
+        this.localVersion = localVersion;
+        this.allocator = allocator;
+        this.localIdentifier = localIdentifier == null ? null : localIdentifier.getBytes(StandardCharsets.UTF_8);
+    }
+
     @Override
     public void prepareInitiator() {
         checkState(status.compareAndSet(
@@ -50,9 +110,10 @@ public class PlainHandshaker implements Handshaker {
         checkState(initiator, "illegal invocation of firstMessage on non-initiator end of handshake");
         checkState(status.compareAndSet(HandshakeStatus.PREPARED, HandshakeStatus.IN_PROGRESS),
                 "illegal invocation of firstMessage, handshake had already started");
-        initiatorMsg = MessageHandler.buildMessage(MessageType.PING, MessageType.PING.getValue(), new byte[0]);
+        initiatorMsg = payload(localCapabilities);
         logger.trace("First plain handshake message under INITIATOR role");
-        return Unpooled.wrappedBuffer(initiatorMsg);
+        return MessageHandler.buildMessage(allocator, localVersion, MessageType.PING,
+                MessageType.PING.getValue(), initiatorMsg);
     }
 
     @Override
@@ -61,7 +122,7 @@ public class PlainHandshaker implements Handshaker {
                 "illegal invocation of onMessage on handshake that is not in progress");
 
         PlainMessage message = MessageHandler.parseMessage(buf);
-        Optional<byte[]> nextMsg = Optional.empty();
+        Optional<ByteBuf> nextMsg = Optional.empty();
         if (initiator) {
             checkState(responderMsg == null,
                     "unexpected message: responder message had " + "already been received");
@@ -69,6 +130,8 @@ public class PlainHandshaker implements Handshaker {
             checkState(message.messageType().equals(MessageType.PONG),
                     "unexpected message: needs to be a pong");
             responderMsg = message.data();
+            capabilities = negotiate(responderMsg);
+            version = Version.negotiate(localVersion, message.version());
 
         } else {
             checkState(initiatorMsg == null,
@@ -77,11 +140,75 @@ public class PlainHandshaker implements Handshaker {
                     "unexpected message: needs to be a ping");
 
             initiatorMsg = message.data();
-            responderMsg = MessageHandler.buildMessage(MessageType.PONG, MessageType.PONG.getValue(), new byte[0]);
-            nextMsg = Optional.of(responderMsg);
+            capabilities = negotiate(initiatorMsg);
+            //在PONG的帧头中回复协商后的版本，旧版本发起方会忽略它并继续使用1.0
+            version = Version.negotiate(localVersion, message.version());
+            responderMsg = payload(capabilities);
+            nextMsg = Optional.of(MessageHandler.buildMessage(allocator, version, MessageType.PONG,
+                    MessageType.PONG.getValue(), responderMsg));
         }
         status.set(HandshakeStatus.SUCCESS);
         logger.trace("Handshake status set to {}", status.get());
-        return nextMsg.map(Unpooled::wrappedBuffer);
+        return nextMsg;
+    }
+
+    @Override
+    public int capabilities() {
+        checkState(status.get() == HandshakeStatus.SUCCESS,
+                "capabilities are only available after a successful handshake");
+        return capabilities;
+    }
+
+    @Override
+    public String version() {
+        checkState(status.get() == HandshakeStatus.SUCCESS,
+                "version is only available after a successful handshake");
+        return version;
+    }
+
+    @Override
+    public String remoteIdentifier() {
+        checkState(status.get() == HandshakeStatus.SUCCESS,
+                "remote identifier is only available after a successful handshake");
+        return Capabilities.has(capabilities, Capabilities.FAST_HANDSHAKE) ? remoteIdentifier : null;
+    }
+
+    /**
+     * 取双方能力的交集，对端声明了快速握手却没有带标识时退回Hello消息
+     */
+    private int negotiate(final byte[] remoteMsg) {
+        int negotiated = localCapabilities & readCapabilities(remoteMsg);
+        if (Capabilities.has(negotiated, Capabilities.FAST_HANDSHAKE)) {
+            if (remoteMsg.length > Integer.BYTES) {
+                remoteIdentifier = new String(remoteMsg, Integer.BYTES, remoteMsg.length - Integer.BYTES,
+                        StandardCharsets.UTF_8);
+            } else {
+                negotiated &= ~Capabilities.FAST_HANDSHAKE;
+            }
+        }
+        return negotiated;
+    }
+
+    /**
+     * 握手消息内容：4字节能力，声明了快速握手时后跟本端标识
+     * 旧版本节点只读取前4字节
+     */
+    private byte[] payload(final int capabilities) {
+        final byte[] caps = Ints.toByteArray(capabilities);
+        if (!Capabilities.has(capabilities, Capabilities.FAST_HANDSHAKE)) {
+            return caps;
+        }
+        final byte[] payload = Arrays.copyOf(caps, caps.length + localIdentifier.length);
+        System.arraycopy(localIdentifier, 0, payload, caps.length, localIdentifier.length);
+        return payload;
+    }
+
+    /**
+     * 旧版本握手消息不带能力字段，视为不支持任何能力
+     */
+    private static int readCapabilities(final byte[] data) {
+        return data != null && data.length >= Integer.BYTES
+                ? Ints.fromByteArray(data)
+                : Capabilities.NONE;
     }
 }
@@ -1,8 +1,11 @@
 package org.codenil.comm.handshake;
 
 import org.codenil.comm.message.MessageType;
+import org.codenil.comm.serialize.Version;
 
 public class PlainMessage {
+    /** 握手帧头中的协议版本 */
+    private final String version;
     private final MessageType messageType;
     private final int code;
     private final byte[] data;
@@ -12,11 +15,20 @@ public class PlainMessage {
     }
 
     public PlainMessage(final MessageType messageType, final int code, final byte[] data) {
+        this(Version.defaultVersion(), messageType, code, data);
+    }
+
+    public PlainMessage(final String version, final MessageType messageType, final int code, final byte[] data) {
+        this.version = version;
         this.messageType = messageType;
         this.code = code;
         this.data = data;
     }
 
+    public String version() {
+        return version;
+    }
+
     public MessageType messageType() {
         return messageType;
     }
@@ -4,16 +4,31 @@ public abstract class AbstractMessage implements Message {
 
     private String requestId;
 
+    private long correlationId;
+
     private byte[] data;
 
+    /** 响应消息按id匹配发起的请求，不分发给订阅者 */
+    private boolean response;
+
     @Override
     public String requestId() {
         return requestId;
     }
 
     @Override
-    public final int size() {
-        return data.length;
+    public long correlationId() {
+        return correlationId;
+    }
+
+    @Override
+    public boolean isResponse() {
+        return response;
+    }
+
+    @Override
+    public int size() {
+        return data == null ? 0 : data.length;
     }
 
     @Override
@@ -25,7 +40,15 @@ public abstract class AbstractMessage implements Message {
         this.requestId = requestId;
     }
 
+    public void setCorrelationId(long correlationId) {
+        this.correlationId = correlationId;
+    }
+
     public void setData(byte[] data) {
         this.data = data;
     }
+
+    public void setResponse(boolean response) {
+        this.response = response;
+    }
 }
@@ -0,0 +1,220 @@
+package org.codenil.comm.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.ReferenceCounted;
+import org.codenil.comm.serialize.Varints;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 直接引用接收缓冲区的入站消息
+ * payload是帧缓冲区的只读切片，requestId和data只在首次访问时才拷贝
+ * 消息经PeerConnectionEvents分发完成后释放，回调中需要继续持有时应先retain
+ *
+ * 数字id帧的requestId按无符号十进制给出，字符串id帧的内容是十进制数字时也能取到correlationId
+ */
+public class ByteBufMessage extends RawMessage implements ReferenceCounted {
+
+    /** 帧体：去掉总长度字段后的部分 */
+    private final ByteBuf frame;
+
+    private final int idOffset;
+
+    /** 字符串id的字节长度，数字id帧为-1 */
+    private final int idLength;
+    private final ByteBuf payload;
+
+    private boolean correlationIdParsed;
+
+    private ByteBufMessage(
+            final int code,
+            final ByteBuf frame,
+            final int idOffset,
+            final int idLength,
+            final ByteBuf payload) {
+        super(code);
+        this.frame = frame;
+        this.idOffset = idOffset;
+        this.idLength = idLength;
+        this.payload = payload;
+    }
+
+    /**
+     * 从帧体创建消息，接管frame的一个引用计数
+     */
+    public static ByteBufMessage wrap(final ByteBuf frame) {
+        final ByteBuf readOnly = frame.asReadOnly();
+        final int base = readOnly.readerIndex();
+        final int length = readOnly.readableBytes();
+
+        final int idLength = readOnly.getInt(base);
+        if (idLength < 0 || idLength > length - 12) {
+            throw new IllegalArgumentException("Invalid request id length: " + idLength);
+        }
+        final int idOffset = base + 4;
+        final int code = readOnly.getInt(idOffset + idLength);
+        final int dataLength = readOnly.getInt(idOffset + idLength + 4);
+        if (dataLength < 0 || dataLength != length - 12 - idLength) {
+            throw new IllegalArgumentException("Invalid data length: " + dataLength);
+        }
+        final ByteBuf payload = readOnly.slice(idOffset + idLength + 8, dataLength);
+        return new ByteBufMessage(code, readOnly, idOffset, idLength, payload);
+    }
+
+    /**
+     * 从数字id帧体创建消息，接管frame的一个引用计数
+     */
+    public static ByteBufMessage wrapNumeric(final ByteBuf frame) {
+        final ByteBuf readOnly = frame.asReadOnly();
+        final int base = readOnly.readerIndex();
+        final int length = readOnly.readableBytes();
+        if (length < 16) {
+            throw new IllegalArgumentException("Numeric id frame too short: " + length);
+        }
+
+        final long correlationId = readOnly.getLong(base);
+        final int code = readOnly.getInt(base + 8);
+        final int dataLength = readOnly.getInt(base + 12);
+        if (dataLength < 0 || dataLength != length - 16) {
+            throw new IllegalArgumentException("Invalid data length: " + dataLength);
+        }
+        final ByteBuf payload = readOnly.slice(base + 16, dataLength);
+        final ByteBufMessage message = new ByteBufMessage(code, readOnly, base, -1, payload);
+        message.setCorrelationId(correlationId);
+        message.correlationIdParsed = true;
+        return message;
+    }
+
+    /**
+     * 从2.0版本的帧体创建消息，frame从flags之后开始，接管frame的一个引用计数
+     */
+    public static ByteBufMessage wrapVarint(final ByteBuf frame, final boolean numericId) {
+        final ByteBuf readOnly = frame.asReadOnly();
+        final int end = readOnly.writerIndex();
+
+        long correlationId = 0L;
+        int idOffset;
+        int idLength = -1;
+        if (numericId) {
+            idOffset = readOnly.readerIndex();
+            correlationId = Varints.readVarLong(readOnly);
+        } else {
+            idLength = Varints.readVarInt(readOnly);
+            idOffset = readOnly.readerIndex();
+            if (idLength < 0 || idLength > readOnly.readableBytes()) {
+                throw new IllegalArgumentException("Invalid request id length: " + idLength);
+            }
+            readOnly.skipBytes(idLength);
+        }
+        final int code = Varints.readVarInt(readOnly);
+        final ByteBuf payload = readOnly.slice(readOnly.readerIndex(), end - readOnly.readerIndex());
+
+        final ByteBufMessage message = new ByteBufMessage(code, readOnly, idOffset, idLength, payload);
+        if (numericId) {
+            message.setCorrelationId(correlationId);
+            message.correlationIdParsed = true;
+        }
+        return message;
+    }
+
+    @Override
+    public String requestId() {
+        String requestId = super.requestId();
+        if (requestId == null) {
+            requestId = idLength < 0
+                    ? Long.toUnsignedString(super.correlationId())
+                    : frame.toString(idOffset, idLength, StandardCharsets.UTF_8);
+            setRequestId(requestId);
+        }
+        return requestId;
+    }
+
+    @Override
+    public long correlationId() {
+        if (!correlationIdParsed) {
+            correlationIdParsed = true;
+            setCorrelationId(parseCorrelationId());
+        }
+        return super.correlationId();
+    }
+
+    /**
+     * 兼容仍然发送字符串id的节点
+     */
+    private long parseCorrelationId() {
+        if (idLength <= 0 || idLength > 20) {
+            return 0L;
+        }
+        for (int i = idOffset; i < idOffset + idLength; i++) {
+            final byte b = frame.getByte(i);
+            if (b < '0' || b > '9') {
+                return 0L;
+            }
+        }
+        try {
+            return Long.parseUnsignedLong(requestId());
+        } catch (final NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    @Override
+    public byte[] data() {
+        byte[] data = super.data();
+        if (data == null) {
+            data = ByteBufUtil.getBytes(payload);
+            setData(data);
+        }
+        return data;
+    }
+
+    @Override
+    public int size() {
+        return payload.readableBytes();
+    }
+
+    @Override
+    public ByteBuf payload() {
+        return payload.duplicate();
+    }
+
+    @Override
+    public int refCnt() {
+        return frame.refCnt();
+    }
+
+    @Override
+    public ByteBufMessage retain() {
+        frame.retain();
+        return this;
+    }
+
+    @Override
+    public ByteBufMessage retain(final int increment) {
+        frame.retain(increment);
+        return this;
+    }
+
+    @Override
+    public ByteBufMessage touch() {
+        frame.touch();
+        return this;
+    }
+
+    @Override
+    public ByteBufMessage touch(final Object hint) {
+        frame.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return frame.release();
+    }
+
+    @Override
+    public boolean release(final int decrement) {
+        return frame.release(decrement);
+    }
+}
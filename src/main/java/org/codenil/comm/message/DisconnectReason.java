@@ -4,6 +4,8 @@ public enum DisconnectReason {
 
     UNKNOWN((byte) 0x00, ""),
 
+    CLIENT_QUITTING((byte) 0x08, "Node is shutting down"),
+
     TIMEOUT((byte) 0x0b, ""),
 
     INVALID_MESSAGE_RECEIVED((byte) 0x02, "An exception was caught decoding message"),
@@ -7,7 +7,7 @@ public class HelloMessage extends AbstractMessage {
     }
 
     public static HelloMessage create(byte[] bytes) {
-        return new HelloMessage(new byte[0]);
+        return new HelloMessage(bytes);
     }
 
     @Override
@@ -4,6 +4,20 @@ public interface Message {
 
     String requestId();
 
+    /**
+     * 数字形式的请求id，0表示没有
+     */
+    default long correlationId() {
+        return 0L;
+    }
+
+    /**
+     * 是否是对某个请求的响应
+     */
+    default boolean isResponse() {
+        return false;
+    }
+
     int size();
 
     int code();
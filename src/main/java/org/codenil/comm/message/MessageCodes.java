@@ -10,12 +10,20 @@ public class MessageCodes {
 
     private MessageCodes() {}
 
+    /**
+     * 握手、断开和保活消息，由连接自身处理
+     */
+    public static boolean isProtocolMessage(final int code) {
+        return code >= HELLO && code <= PONG;
+    }
+
     public static String messageName(final int code) {
         return switch (code) {
             case HELLO -> "Hello";
             case DISCONNECT -> "Disconnect";
             case PING -> "Ping";
             case PONG -> "Pong";
+            case GOSSIP -> "Gossip";
             default -> "invalid";
         };
     }
@@ -1,13 +1,44 @@
 package org.codenil.comm.message;
 
-public class PingMessage extends EmptyMessage {
-    private static final PingMessage INSTANCE = new PingMessage();
+import java.nio.ByteBuffer;
+
+/**
+ * 保活PING，数据为发送方的System.nanoTime()，对端在PONG中原样返回，用于测量往返时延
+ * 旧版本节点发送的PING不带数据
+ */
+public class PingMessage implements Message {
+
+    /** 时间戳的字节数 */
+    public static final int TIMESTAMP_LENGTH = Long.BYTES;
+
+    private static final PingMessage INSTANCE = new PingMessage(new byte[]{});
+
+    private final byte[] data;
 
     public static PingMessage get() {
         return INSTANCE;
     }
 
-    private PingMessage() {}
+    /**
+     * 带发送时间戳的PING
+     */
+    public static PingMessage create(final long timestampNanos) {
+        return new PingMessage(ByteBuffer.allocate(TIMESTAMP_LENGTH).putLong(timestampNanos).array());
+    }
+
+    /**
+     * 从PING或PONG的数据中读取时间戳，不带时间戳时返回null
+     */
+    public static Long timestamp(final byte[] data) {
+        if (data == null || data.length != TIMESTAMP_LENGTH) {
+            return null;
+        }
+        return ByteBuffer.wrap(data).getLong();
+    }
+
+    private PingMessage(final byte[] data) {
+        this.data = data;
+    }
 
     @Override
     public String requestId() {
@@ -19,8 +50,18 @@ public class PingMessage extends EmptyMessage {
         return MessageCodes.PING;
     }
 
+    @Override
+    public int size() {
+        return data.length;
+    }
+
+    @Override
+    public byte[] data() {
+        return data.clone();
+    }
+
     @Override
     public String toString() {
-        return "PingMessage{data=''}";
+        return "PingMessage{size=" + data.length + "}";
     }
 }
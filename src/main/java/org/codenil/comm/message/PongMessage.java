@@ -1,13 +1,28 @@
 package org.codenil.comm.message;
 
-public class PongMessage extends EmptyMessage {
-    private static final PongMessage INSTANCE = new PongMessage();
+/**
+ * 保活PONG，数据为收到的PING的数据
+ */
+public class PongMessage implements Message {
+
+    private static final PongMessage INSTANCE = new PongMessage(new byte[]{});
+
+    private final byte[] data;
 
     public static PongMessage get() {
         return INSTANCE;
     }
 
-    private PongMessage() {}
+    /**
+     * 回应PING，原样带回PING的时间戳，PING不带数据时等同于get()
+     */
+    public static PongMessage create(final byte[] pingData) {
+        return pingData == null || pingData.length == 0 ? INSTANCE : new PongMessage(pingData.clone());
+    }
+
+    private PongMessage(final byte[] data) {
+        this.data = data;
+    }
 
     @Override
     public String requestId() {
@@ -18,4 +33,19 @@ public class PongMessage extends EmptyMessage {
     public int code() {
         return MessageCodes.PONG;
     }
+
+    @Override
+    public int size() {
+        return data.length;
+    }
+
+    @Override
+    public byte[] data() {
+        return data.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "PongMessage{size=" + data.length + "}";
+    }
 }
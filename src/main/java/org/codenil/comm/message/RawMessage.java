@@ -1,8 +1,10 @@
 package org.codenil.comm.message;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
-import org.codenil.comm.serialize.SerializeHelper;
+
+import java.util.Optional;
 
 public class RawMessage extends AbstractMessage {
 
@@ -17,6 +19,18 @@ public class RawMessage extends AbstractMessage {
         return new RawMessage(code);
     }
 
+    /**
+     * 复制消息的code、id、data和响应标志，data使用堆内数组，不再引用接收缓冲区
+     */
+    public static RawMessage copyOf(final Message message) {
+        RawMessage rawMessage = create(message.code());
+        rawMessage.setRequestId(message.requestId());
+        rawMessage.setCorrelationId(message.correlationId());
+        rawMessage.setData(message.data());
+        rawMessage.setResponse(message.isResponse());
+        return rawMessage;
+    }
+
     public static RawMessage decode(byte[] messageBytes) {
         ByteBuf buf = Unpooled.wrappedBuffer(messageBytes);
         buf.readerIndex(0);
@@ -38,15 +52,26 @@ public class RawMessage extends AbstractMessage {
     }
 
     public static byte[] encode(RawMessage rawMessage) {
-        SerializeHelper converter = new SerializeHelper();
-
-        ByteBuf byteBuf = converter
-                .writeVersion("1.0")
-                .writeInt(rawMessage.code())
-                .writeString(rawMessage.requestId())
-                .writeBytes(rawMessage.data())
-                .build();
-        return converter.readPayload(byteBuf);
+        String requestId = Optional.ofNullable(rawMessage.requestId()).orElse("");
+        byte[] data = Optional.ofNullable(rawMessage.data()).orElse(new byte[0]);
+        int requestIdLength = ByteBufUtil.utf8Bytes(requestId);
+
+        //code + requestId长度 + requestId + data长度 + data，一次分配
+        byte[] messageBytes = new byte[4 + 4 + requestIdLength + 4 + data.length];
+        ByteBuf buf = Unpooled.wrappedBuffer(messageBytes).clear();
+        buf.writeInt(rawMessage.code());
+        buf.writeInt(requestIdLength);
+        ByteBufUtil.reserveAndWriteUtf8(buf, requestId, requestIdLength);
+        buf.writeInt(data.length);
+        buf.writeBytes(data);
+        return messageBytes;
+    }
+
+    /**
+     * 消息数据的只读视图
+     */
+    public ByteBuf payload() {
+        return Unpooled.wrappedBuffer(Optional.ofNullable(data()).orElse(new byte[0])).asReadOnly();
     }
 
     @Override
@@ -0,0 +1,47 @@
+package org.codenil.comm.netty;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/**
+ * 缓冲区分配策略，同时用于channel、编码器和握手消息
+ */
+public enum AllocatorType {
+    /** 池化堆外内存，写socket时不需要再从堆内拷贝，使用Netty共享的默认内存池 */
+    POOLED_DIRECT(true),
+    /** 池化堆内存 */
+    POOLED_HEAP(false),
+    /** 不池化，每次分配新缓冲区 */
+    UNPOOLED(true),
+    ;
+
+    private final boolean preferDirect;
+
+    AllocatorType(final boolean preferDirect) {
+        this.preferDirect = preferDirect;
+    }
+
+    /**
+     * 编码器是否优先分配堆外缓冲区
+     */
+    public boolean preferDirect() {
+        return preferDirect;
+    }
+
+    public ByteBufAllocator allocator() {
+        return switch (this) {
+            case POOLED_DIRECT -> PooledByteBufAllocator.DEFAULT;
+            case POOLED_HEAP -> PooledHeap.INSTANCE;
+            case UNPOOLED -> UnpooledByteBufAllocator.DEFAULT;
+        };
+    }
+
+    /**
+     * 池化分配器是否优先堆外在创建时确定，DEFAULT的buffer()在平台支持时返回堆外缓冲区，堆内策略只能单独创建一个实例
+     * 该实例的内存池与DEFAULT互不共享，只在选择POOLED_HEAP时才创建；读socket用的ioBuffer()仍从它的堆外内存池分配
+     */
+    private static class PooledHeap {
+        private static final ByteBufAllocator INSTANCE = new PooledByteBufAllocator(false);
+    }
+}
@@ -0,0 +1,146 @@
+package org.codenil.comm.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import org.codenil.comm.connections.PeerConnection;
+import org.codenil.comm.handler.MessageFrameEncoder;
+import org.codenil.comm.handler.SnappyFrameEncoder;
+import org.codenil.comm.message.Message;
+import org.codenil.comm.message.RawMessage;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 广播：同一消息只编码一次，共用缓冲区写给所有连接
+ * 协商的帧格式（版本、数字id、压缩阈值）相同的连接共用一个编码结果，每个连接写入一个retainedDuplicate
+ * 写入按事件循环分组，每个事件循环只切换一次线程，写完后统一flush
+ */
+public final class NettyBroadcaster {
+
+    private NettyBroadcaster() {}
+
+    /**
+     * @return 所有连接写入完成后完成，任意一个失败时以异常完成
+     */
+    public static CompletableFuture<Void> broadcast(
+            final Message message,
+            final Collection<? extends PeerConnection> connections) {
+        final RawMessage rawMessage = RawMessage.copyOf(message);
+        final List<CompletableFuture<Void>> results = new ArrayList<>(connections.size());
+        final Map<FrameFormat, ByteBuf> frames = new HashMap<>();
+        final Map<EventLoop, List<PendingWrite>> writesByLoop = new HashMap<>();
+        try {
+            for (PeerConnection connection : connections) {
+                final CompletableFuture<Void> result = new CompletableFuture<>();
+                results.add(result);
+                if (!(connection instanceof NettyPeerConnection nettyConnection)) {
+                    sendDirectly(connection, message, result);
+                    continue;
+                }
+
+                final ChannelPipeline pipeline = nettyConnection.channel().pipeline();
+                final MessageFrameEncoder encoder = (MessageFrameEncoder) pipeline.get("FrameEncoder");
+                if (encoder == null) {
+                    result.completeExceptionally(new ClosedChannelException());
+                    continue;
+                }
+                final SnappyFrameEncoder compressor = (SnappyFrameEncoder) pipeline.get("Compressor");
+                final FrameFormat format = new FrameFormat(encoder.varintFraming(), encoder.numericIds(),
+                        compressor == null ? -1 : compressor.threshold());
+
+                ByteBuf frame = frames.get(format);
+                if (frame == null) {
+                    frame = encode(nettyConnection, rawMessage, encoder, compressor);
+                    frames.put(format, frame);
+                }
+                //已编码的帧从编码器之后写入，不再经过编码和压缩
+                final String handlerName = compressor == null ? "FrameEncoder" : "Compressor";
+                writesByLoop.computeIfAbsent(nettyConnection.channel().eventLoop(), _ -> new ArrayList<>())
+                        .add(new PendingWrite(nettyConnection, handlerName, frame.retainedDuplicate(), result));
+            }
+        } catch (final Exception e) {
+            writesByLoop.values().forEach(writes -> writes.forEach(w -> w.frame().release()));
+            results.forEach(r -> r.completeExceptionally(e));
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            frames.values().forEach(ByteBuf::release);
+        }
+
+        writesByLoop.forEach(NettyBroadcaster::schedule);
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static ByteBuf encode(
+            final NettyPeerConnection connection,
+            final RawMessage rawMessage,
+            final MessageFrameEncoder encoder,
+            final SnappyFrameEncoder compressor) throws Exception {
+        final ByteBuf frame = encoder.encode(connection.channel().alloc(), rawMessage);
+        if (compressor == null) {
+            return frame;
+        }
+        try {
+            return compressor.compress(connection.channel().alloc(), frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 在事件循环中依次写入，全部写完后每个连接flush一次
+     */
+    private static void schedule(final EventLoop eventLoop, final List<PendingWrite> writes) {
+        try {
+            eventLoop.execute(() -> {
+                for (PendingWrite write : writes) {
+                    write.connection().writeEncoded(write.handlerName(), write.frame(), write.result());
+                }
+                for (PendingWrite write : writes) {
+                    write.connection().flushPending();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            //事件循环已关闭
+            for (PendingWrite write : writes) {
+                write.frame().release();
+                write.result().completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void sendDirectly(
+            final PeerConnection connection,
+            final Message message,
+            final CompletableFuture<Void> result) {
+        try {
+            connection.send(message).whenComplete((_, err) -> {
+                if (err != null) {
+                    result.completeExceptionally(err);
+                } else {
+                    result.complete(null);
+                }
+            });
+        } catch (final Exception e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 决定帧字节内容的协商结果
+     */
+    private record FrameFormat(boolean varintFraming, boolean numericIds, int compressionThreshold) {}
+
+    private record PendingWrite(
+            NettyPeerConnection connection,
+            String handlerName,
+            ByteBuf frame,
+            CompletableFuture<Void> result) {}
+}
@@ -3,43 +3,69 @@ package org.codenil.comm.netty;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.RemotePeer;
 import org.codenil.comm.callback.ConnectCallback;
 import org.codenil.comm.connections.ConnectionInitializer;
 import org.codenil.comm.connections.PeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
+import org.codenil.comm.connections.TimeoutService;
 import org.codenil.comm.connections.Subscribers;
 import org.codenil.comm.handler.TimeoutHandler;
+import org.codenil.comm.handshake.Capabilities;
 import org.codenil.comm.handshake.HandshakeHandlerInbound;
 import org.codenil.comm.handshake.HandshakeHandlerOutbound;
 import org.codenil.comm.handshake.PlainHandshaker;
+import org.codenil.comm.message.DisconnectReason;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * netty初始化
  */
 public class NettyConnectionInitializer implements ConnectionInitializer {
 
+    private static final Logger logger = LoggerFactory.getLogger(NettyConnectionInitializer.class);
+
     private static final int TIMEOUT_SECONDS = 10;
 
+    /** 时间轮精度，各类超时的误差在一个tick以内 */
+    private static final long TIMER_TICK_MILLIS = 10;
+
     private final Subscribers<ConnectCallback> connectSubscribers = Subscribers.create();
+
+    /** 所有已建立的channel，包括入站和出站，停止时逐个排空；channel关闭后自动移除 */
+    private final ChannelGroup channels = new DefaultChannelGroup("comm-channels", GlobalEventExecutor.INSTANCE);
     private final PeerConnectionEvents eventDispatcher;
 
-    private final EventLoopGroup boss = new NioEventLoopGroup(1);
-    private final EventLoopGroup workers = new NioEventLoopGroup(10);
+    private final Transport transport;
+    private final EventLoopGroup boss;
+    private final EventLoopGroup workers;
+
+    /** 所有连接共用的超时服务：握手超时、空闲检测、延迟关闭和请求超时 */
+    private final TimeoutService timeouts;
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
@@ -56,6 +82,12 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
         this.config = config;
         this.selfIdentifier = selfIdentifier;
         this.eventDispatcher = eventDispatcher;
+        this.transport = Transport.select(config.nativeTransportEnabled());
+        this.boss = transport.newEventLoopGroup(config.bossThreads(), "comm-boss");
+        this.workers = transport.newEventLoopGroup(config.workerThreads(), "comm-worker");
+        this.timeouts = new TimeoutService(new DefaultThreadFactory("comm-timer", true),
+                TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Using {} transport with {} worker threads", transport, config.workerThreads());
     }
 
     /**
@@ -73,7 +105,11 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
 
         this.server = new ServerBootstrap()
                 .group(boss, workers)
-                .channel(NioServerSocketChannel.class)
+                .channel(transport.serverChannelClass())
+                .option(ChannelOption.ALLOCATOR, config.allocatorType().allocator())
+                .childOption(ChannelOption.ALLOCATOR, config.allocatorType().allocator())
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark())
                 .childHandler(inboundChannelInitializer())
                 .bind(config.bindHost(), config.bindPort());
         server.addListener(future -> {
@@ -94,32 +130,120 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
         return listeningPortFuture;
     }
 
+    @Override
+    public Duration drainTimeout() {
+        return config.drainTimeout();
+    }
+
     /**
      * 停止netty服务器
+     * 先关闭监听，再按期限排空所有连接（包括入站连接），最后停止事件循环
      */
     @Override
-    public CompletableFuture<Void> stop() {
-        final CompletableFuture<Void> stoppedFuture = new CompletableFuture<>();
+    public CompletableFuture<Long> stop(final Duration drainTimeout) {
+        final CompletableFuture<Long> stoppedFuture = new CompletableFuture<>();
         if (!started.get() || !stopped.compareAndSet(false, true)) {
             stoppedFuture.completeExceptionally(
                     new IllegalStateException("Illegal attempt to stop " + this.getClass().getSimpleName()));
             return stoppedFuture;
         }
 
-        workers.shutdownGracefully();
-        boss.shutdownGracefully();
-        server.channel()
-                .closeFuture()
-                .addListener((future) -> {
-                    if (future.isSuccess()) {
-                        stoppedFuture.complete(null);
-                    } else {
-                        stoppedFuture.completeExceptionally(future.cause());
-                    }
-                });
+        //先停止接受新连接，监听器在事件循环停止前注册
+        final CompletableFuture<Void> serverClosed = new CompletableFuture<>();
+        server.channel().close().addListener((future) -> {
+            if (future.isSuccess()) {
+                serverClosed.complete(null);
+            } else {
+                serverClosed.completeExceptionally(future.cause());
+            }
+        });
+        final List<Channel> draining = new ArrayList<>(channels);
+        final AtomicLong dropped = new AtomicLong();
+        final List<CompletableFuture<Void>> closed = new ArrayList<>(draining.size());
+        for (Channel channel : draining) {
+            closed.add(drain(channel));
+        }
+
+        //期限到达时强制关闭，统计还在写缓冲区中的字节
+        Timeout deadline = null;
+        if (!closed.stream().allMatch(CompletableFuture::isDone)) {
+            try {
+                deadline = timeouts.schedule(() -> draining.forEach(channel -> forceClose(channel, dropped)),
+                        drainTimeout.toNanos(), TimeUnit.NANOSECONDS);
+            } catch (final RejectedExecutionException e) {
+                draining.forEach(channel -> forceClose(channel, dropped));
+            }
+        }
+        final Timeout drainDeadline = deadline;
+
+        closed.add(serverClosed);
+        CompletableFuture.allOf(closed.toArray(new CompletableFuture<?>[0])).whenComplete((_, err) -> {
+            if (drainDeadline != null) {
+                drainDeadline.cancel();
+            }
+            if (dropped.get() > 0) {
+                logger.warn("Dropped {} pending bytes on {} connections after {}ms drain timeout",
+                        dropped.get(), draining.size(), drainTimeout.toMillis());
+            }
+            workers.shutdownGracefully();
+            boss.shutdownGracefully();
+            //事件循环退出后再停止，关闭过程中的延迟关闭等任务仍能执行
+            workers.terminationFuture().addListener(_ -> timeouts.stop());
+            if (err != null) {
+                stoppedFuture.completeExceptionally(err);
+            } else {
+                stoppedFuture.complete(dropped.get());
+            }
+        });
         return stoppedFuture;
     }
 
+    /**
+     * 排空一个连接：发送DISCONNECT，之前写入的数据和DISCONNECT都写出后关闭
+     * 还在握手的连接直接关闭
+     */
+    private CompletableFuture<Void> drain(final Channel channel) {
+        final CompletableFuture<Void> closed = new CompletableFuture<>();
+        channel.closeFuture().addListener(_ -> closed.complete(null));
+        final NettyPeerConnection connection = channel.attr(NettyPeerConnection.CONNECTION).get();
+        if (connection == null) {
+            channel.close();
+            return closed;
+        }
+        connection.disconnectForDrain(DisconnectReason.CLIENT_QUITTING);
+        try {
+            //在DISCONNECT之后排队，从管道头部写入空缓冲区作为屏障，写完即说明之前的数据都已写出
+            channel.eventLoop().execute(() -> {
+                final ChannelHandlerContext first = channel.pipeline().firstContext();
+                if (first == null) {
+                    channel.close();
+                    return;
+                }
+                first.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(_ -> channel.close());
+            });
+        } catch (final RejectedExecutionException e) {
+            channel.close();
+        }
+        return closed;
+    }
+
+    private void forceClose(final Channel channel, final AtomicLong dropped) {
+        try {
+            channel.eventLoop().execute(() -> {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                final ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+                if (outboundBuffer != null) {
+                    dropped.addAndGet(outboundBuffer.totalPendingWriteBytes());
+                }
+                channel.close();
+            });
+        } catch (final RejectedExecutionException e) {
+            channel.close();
+        }
+    }
+
     /**
      * 连接到远程
      */
@@ -131,10 +255,12 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
 
         new Bootstrap()
                 .group(workers)
-                .channel(NioSocketChannel.class)
+                .channel(transport.channelClass())
                 .remoteAddress(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])))
                 .option(ChannelOption.TCP_NODELAY, true)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, TIMEOUT_SECONDS * 1000)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark())
+                .option(ChannelOption.ALLOCATOR, config.allocatorType().allocator())
                 .handler(outboundChannelInitializer(remotePeer, connectionFuture))
                 .connect()
                 .addListener(
@@ -152,6 +278,7 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
         return new ChannelInitializer<>() {
             @Override
             protected void initChannel(final SocketChannel ch) throws Exception {
+                channels.add(ch);
                 final CompletableFuture<PeerConnection> connectionFuture = new CompletableFuture<>();
                 connectionFuture.thenAccept(connection -> connectSubscribers.forEach(c -> c.onConnect(connection)));
                 //连接处理器
@@ -170,6 +297,7 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
         return new ChannelInitializer<>() {
             @Override
             protected void initChannel(final SocketChannel ch) throws Exception {
+                channels.add(ch);
                 //连接处理器
                 ch.pipeline().addLast(timeoutHandler(connectionFuture, "Timed out waiting to establish connection with peer: " + remotePeer.toString()));
                 //其他处理器
@@ -183,16 +311,17 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
     @Nonnull
     private TimeoutHandler<Channel> timeoutHandler(
             final CompletableFuture<PeerConnection> connectionFuture, final String message) {
-        return new TimeoutHandler<>(connectionFuture::isDone, TIMEOUT_SECONDS,
-                () -> connectionFuture.completeExceptionally(new TimeoutException(message)));
+        return new TimeoutHandler<>(connectionFuture, TIMEOUT_SECONDS,
+                () -> connectionFuture.completeExceptionally(new TimeoutException(message)), timeouts);
     }
 
     @Nonnull
     private HandshakeHandlerInbound inboundHandler(
             final String selfIdentifier,
             final CompletableFuture<PeerConnection> connectionFuture) {
-        return new HandshakeHandlerInbound(selfIdentifier, connectionFuture,
-                eventDispatcher, new PlainHandshaker());
+        return new HandshakeHandlerInbound(config, selfIdentifier, connectionFuture,
+                eventDispatcher, new PlainHandshaker(localCapabilities(), config.protocolVersion(),
+                        config.allocatorType().allocator(), selfIdentifier), timeouts);
     }
 
     @Nonnull
@@ -200,8 +329,34 @@ public class NettyConnectionInitializer implements ConnectionInitializer {
             final String selfIdentifier,
             final RemotePeer remotePeer,
             final CompletableFuture<PeerConnection> connectionFuture) {
-        return new HandshakeHandlerOutbound(selfIdentifier, connectionFuture,
-                eventDispatcher, new PlainHandshaker());
+        return new HandshakeHandlerOutbound(config, selfIdentifier, connectionFuture,
+                eventDispatcher, new PlainHandshaker(localCapabilities(), config.protocolVersion(),
+                        config.allocatorType().allocator(), selfIdentifier), timeouts);
+    }
+
+    /**
+     * IO线程组，其他组件需要在事件循环上调度任务时使用
+     */
+    public EventLoopGroup workers() {
+        return workers;
+    }
+
+    /**
+     * 本端在握手时声明的能力
+     */
+    private int localCapabilities() {
+        int capabilities = Capabilities.NUMERIC_REQUEST_ID | Capabilities.FAST_HANDSHAKE;
+        if (config.compressionEnabled()) {
+            capabilities |= Capabilities.SNAPPY;
+        }
+        return capabilities;
+    }
+
+    /**
+     * 写缓冲区水位，超过高水位后连接不可写，发送方应暂停
+     */
+    private WriteBufferWaterMark writeBufferWaterMark() {
+        return new WriteBufferWaterMark(config.writeBufferLowWaterMark(), config.writeBufferHighWaterMark());
     }
 
     void addAdditionalOutboundHandlers(final Channel channel, final RemotePeer remotePeer)
@@ -1,11 +1,20 @@
 package org.codenil.comm.netty;
 
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.PromiseCombiner;
 
+import org.codenil.comm.NetworkConfig;
 import org.codenil.comm.connections.AbstractPeerConnection;
 import org.codenil.comm.connections.PeerConnectionEvents;
+import org.codenil.comm.connections.TimeoutService;
 import org.codenil.comm.message.DisconnectMessage;
 import org.codenil.comm.message.DisconnectReason;
 import org.codenil.comm.message.Message;
@@ -13,25 +22,65 @@ import org.codenil.comm.message.RawMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class NettyPeerConnection extends AbstractPeerConnection {
+public final class NettyPeerConnection extends AbstractPeerConnection {
 
     private static final Logger logger = LoggerFactory.getLogger(AbstractPeerConnection.class);
 
+    /** channel上挂载的连接对象，停止时按channel找到连接 */
+    public static final AttributeKey<NettyPeerConnection> CONNECTION = AttributeKey.valueOf("comm.connection");
+
+    /** 发送DISCONNECT后等待对端关闭的时间，超时后本端关闭 */
+    private static final long CLOSE_DELAY_SECONDS = 2;
+
     private final ChannelHandlerContext ctx;
 
     private final PeerConnectionEvents connectionEvents;
 
+    /** 待flush字节数达到该值时立即flush */
+    private final int flushThresholdBytes;
+
+    /** 延迟关闭连接 */
+    private final TimeoutService timeouts;
+
+    private final Runnable flushTask = this::flushPending;
+
+    /** 以下两个字段只在事件循环线程中访问 */
+    private int pendingBytes;
+    private boolean flushScheduled;
+
+    public NettyPeerConnection(
+            final ChannelHandlerContext ctx,
+            final String remoteIdentifier,
+            final PeerConnectionEvents connectionEvents,
+            final TimeoutService timeouts) {
+        this(ctx, remoteIdentifier, connectionEvents, timeouts, NetworkConfig.DEFAULT_FLUSH_THRESHOLD_BYTES);
+    }
+
     public NettyPeerConnection(
             final ChannelHandlerContext ctx,
             final String remoteIdentifier,
-            final PeerConnectionEvents connectionEvents) {
-        super(remoteIdentifier);
+            final PeerConnectionEvents connectionEvents,
+            final TimeoutService timeouts,
+            final int flushThresholdBytes) {
+        super(remoteIdentifier, timeouts);
+        this.timeouts = timeouts;
         this.ctx = ctx;
         this.connectionEvents = connectionEvents;
+        this.flushThresholdBytes = flushThresholdBytes;
+        //对端直接关闭连接时也要通知断开，并结束未完成的请求
+        ctx.channel().closeFuture().addListener(_ -> {
+            terminateConnection();
+            failPendingRequests(new ClosedChannelException());
+        });
     }
 
     @Override
@@ -58,11 +107,138 @@ public class NettyPeerConnection extends AbstractPeerConnection {
         }
     }
 
+    /**
+     * 停止时使用：通知断开并发送DISCONNECT，但不安排延迟关闭，由停止流程在写缓冲区清空后关闭
+     */
+    void disconnectForDrain(final DisconnectReason reason) {
+        if (disconnected.compareAndSet(false, true)) {
+            connectionEvents.dispatchDisconnect(this);
+            doSendMessage(DisconnectMessage.create(reason));
+        }
+    }
+
+    /**
+     * 只写入不flush，同一轮事件循环内的消息合并成一次flush
+     * 其他线程的调用转到事件循环线程执行，保证写入与flush调度的顺序
+     */
+    @Override
+    protected CompletableFuture<Void> doSendMessage(final Message message) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final RawMessage rawMessage = toRawMessage(message);
+        final EventLoop eventLoop = ctx.channel().eventLoop();
+        if (eventLoop.inEventLoop()) {
+            write(rawMessage, result);
+        } else {
+            execute(eventLoop, () -> write(rawMessage, result), result);
+        }
+        return result;
+    }
+
+    /**
+     * 批量写入后立即flush，其他线程的调用只切换一次线程
+     */
+    @Override
+    protected CompletableFuture<Void> doSendMessages(final Collection<? extends Message> messages) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final List<RawMessage> rawMessages = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            rawMessages.add(toRawMessage(message));
+        }
+        final EventLoop eventLoop = ctx.channel().eventLoop();
+        if (eventLoop.inEventLoop()) {
+            writeAll(rawMessages, result);
+        } else {
+            execute(eventLoop, () -> writeAll(rawMessages, result), result);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return ctx.channel().isWritable();
+    }
+
     @Override
-    protected void doSendMessage(final Message message) {
-        RawMessage rawMessage = RawMessage.create(message.code());
-        rawMessage.setData(message.data());
-        ctx.channel().writeAndFlush(rawMessage);
+    public long pendingWriteBytes() {
+        final ChannelOutboundBuffer outboundBuffer = ctx.channel().unsafe().outboundBuffer();
+        //连接关闭后没有写缓冲区
+        return outboundBuffer == null ? Long.MAX_VALUE : outboundBuffer.totalPendingWriteBytes();
+    }
+
+    @Override
+    public void setAutoRead(final boolean autoRead) {
+        ctx.channel().config().setAutoRead(autoRead);
+    }
+
+    private void write(final RawMessage rawMessage, final CompletableFuture<Void> result) {
+        ctx.channel().write(rawMessage).addListener(f -> complete(f, result));
+        pendingBytes += rawMessage.size();
+        if (pendingBytes >= flushThresholdBytes) {
+            flushPending();
+        } else if (!flushScheduled) {
+            //排在本轮已就绪的IO和任务之后执行
+            flushScheduled = true;
+            ctx.channel().eventLoop().execute(flushTask);
+        }
+    }
+
+    private void writeAll(final List<RawMessage> rawMessages, final CompletableFuture<Void> result) {
+        final PromiseCombiner combiner = new PromiseCombiner(ctx.channel().eventLoop());
+        for (RawMessage rawMessage : rawMessages) {
+            combiner.add(ctx.channel().write(rawMessage));
+        }
+        final ChannelPromise aggregate = ctx.channel().newPromise();
+        aggregate.addListener(f -> complete(f, result));
+        combiner.finish(aggregate);
+        flushPending();
+    }
+
+    /**
+     * 广播用：从指定处理器之后写入已编码的帧，只在事件循环线程中调用，不flush
+     * 处理器已移除时说明连接正在关闭，释放帧并以异常结束
+     */
+    void writeEncoded(final String handlerName, final ByteBuf frame, final CompletableFuture<Void> result) {
+        final ChannelHandlerContext writeCtx = ctx.pipeline().context(handlerName);
+        if (writeCtx == null) {
+            frame.release();
+            result.completeExceptionally(new ClosedChannelException());
+            return;
+        }
+        writeCtx.write(frame).addListener(f -> complete(f, result));
+    }
+
+    Channel channel() {
+        return ctx.channel();
+    }
+
+    void flushPending() {
+        flushScheduled = false;
+        pendingBytes = 0;
+        ctx.channel().flush();
+    }
+
+    private static void execute(
+            final EventLoop eventLoop,
+            final Runnable task,
+            final CompletableFuture<Void> result) {
+        try {
+            eventLoop.execute(task);
+        } catch (final RejectedExecutionException e) {
+            //事件循环已关闭
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static void complete(final Future<?> future, final CompletableFuture<Void> result) {
+        if (future.isSuccess()) {
+            result.complete(null);
+        } else {
+            result.completeExceptionally(future.cause());
+        }
+    }
+
+    private static RawMessage toRawMessage(final Message message) {
+        return RawMessage.copyOf(message);
     }
 
     @Override
@@ -78,6 +254,10 @@ public class NettyPeerConnection extends AbstractPeerConnection {
 
     @Override
     protected void closeConnection() {
-        ctx.channel().eventLoop().schedule((Callable<ChannelFuture>) ctx::close, 2L, SECONDS);
+        try {
+            timeouts.schedule(ctx.channel().eventLoop(), ctx::close, CLOSE_DELAY_SECONDS, SECONDS);
+        } catch (final RejectedExecutionException e) {
+            ctx.close();
+        }
     }
 }
@@ -0,0 +1,51 @@
+package org.codenil.comm.netty;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 传输层实现，Linux下优先使用epoll，不可用时回退到NIO
+ */
+public enum Transport {
+    EPOLL,
+    NIO,
+    ;
+
+    /**
+     * @param nativeEnabled 是否允许使用原生传输
+     */
+    public static Transport select(final boolean nativeEnabled) {
+        return nativeEnabled && Epoll.isAvailable() ? EPOLL : NIO;
+    }
+
+    public EventLoopGroup newEventLoopGroup(final int threads, final String poolName) {
+        final DefaultThreadFactory threadFactory = new DefaultThreadFactory(poolName);
+        return switch (this) {
+            case EPOLL -> new EpollEventLoopGroup(threads, threadFactory);
+            case NIO -> new NioEventLoopGroup(threads, threadFactory);
+        };
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return switch (this) {
+            case EPOLL -> EpollServerSocketChannel.class;
+            case NIO -> NioServerSocketChannel.class;
+        };
+    }
+
+    public Class<? extends SocketChannel> channelClass() {
+        return switch (this) {
+            case EPOLL -> EpollSocketChannel.class;
+            case NIO -> NioSocketChannel.class;
+        };
+    }
+}
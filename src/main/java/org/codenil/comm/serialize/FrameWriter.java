@@ -0,0 +1,173 @@
+package org.codenil.comm.serialize;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * 流式帧写入，1.0版本的帧格式，2.0版本见VarintFrameWriter
+ * 预先计算帧长度，直接把各字段写入目标ByteBuf，不产生中间缓冲区
+ *
+ * 消息帧：总长度(4，包含自身) + id长度(4) + id + code(4) + data长度(4) + data
+ * 数字id帧：总长度(4，包含自身) + id(8) + code(4) + data长度(4) + data
+ * 总长度字段的最高位是压缩标志，置位时总长度之后的内容为Snappy压缩后的帧体
+ * 次高位是数字id标志，只在握手协商了数字id后使用
+ * 第三位是响应标志，置位时帧是对某个请求的响应，按id匹配发起的请求
+ * 握手帧：version长度(4) + version + payload长度(4) + type(4) + code(4) + data长度(4) + data
+ */
+public final class FrameWriter {
+
+    private static final int INT_BYTES = Integer.BYTES;
+
+    /** 消息帧固定字段：总长度、id长度、code、data长度，即最短的合法帧 */
+    public static final int MIN_FRAME_LENGTH = INT_BYTES * 4;
+
+    /** 压缩标志位 */
+    public static final int COMPRESSED_FLAG = 0x80000000;
+
+    /** 数字id标志位 */
+    public static final int NUMERIC_ID_FLAG = 0x40000000;
+
+    /** 响应标志位 */
+    public static final int RESPONSE_FLAG = 0x20000000;
+
+    /** 去掉标志位后的长度掩码 */
+    public static final int LENGTH_MASK = 0x1FFFFFFF;
+
+    /** 数字id帧固定字段：总长度、id、code、data长度 */
+    public static final int MIN_NUMERIC_FRAME_LENGTH = INT_BYTES * 3 + Long.BYTES;
+
+    /** 握手payload固定字段：type、code、data长度 */
+    private static final int HANDSHAKE_PAYLOAD_FIXED_LENGTH = INT_BYTES * 3;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private FrameWriter() {}
+
+    /**
+     * 总长度与标志位共用一个int，超过LENGTH_MASK的长度会改写标志位
+     */
+    private static int checkLength(final long totalLength) {
+        if (totalLength > LENGTH_MASK) {
+            throw new IllegalArgumentException(
+                    "Frame length " + totalLength + " exceeds the 1.0 frame limit " + LENGTH_MASK);
+        }
+        return (int) totalLength;
+    }
+
+    /**
+     * 消息帧总长度
+     */
+    public static int frameLength(final String requestId, final byte[] data) {
+        return MIN_FRAME_LENGTH + ByteBufUtil.utf8Bytes(nullToEmpty(requestId)) + nullToEmpty(data).length;
+    }
+
+    /**
+     * 写入一个完整的消息帧
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final String requestId,
+            final int code,
+            final byte[] data) {
+        writeFrame(out, requestId, code, data, 0);
+    }
+
+    /**
+     * 写入一个完整的消息帧，flags写在总长度字段的高位
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final String requestId,
+            final int code,
+            final byte[] data,
+            final int flags) {
+        final String id = nullToEmpty(requestId);
+        final byte[] payload = nullToEmpty(data);
+        final int idLength = ByteBufUtil.utf8Bytes(id);
+        final int totalLength = checkLength((long) MIN_FRAME_LENGTH + idLength + payload.length);
+
+        out.ensureWritable(totalLength);
+        out.writeInt(totalLength | flags);
+        out.writeInt(idLength);
+        ByteBufUtil.reserveAndWriteUtf8(out, id, idLength);
+        out.writeInt(code);
+        out.writeInt(payload.length);
+        out.writeBytes(payload);
+    }
+
+    /**
+     * 数字id消息帧总长度
+     */
+    public static int frameLength(final byte[] data) {
+        return MIN_NUMERIC_FRAME_LENGTH + nullToEmpty(data).length;
+    }
+
+    /**
+     * 写入一个数字id的消息帧
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final long correlationId,
+            final int code,
+            final byte[] data) {
+        writeFrame(out, correlationId, code, data, 0);
+    }
+
+    /**
+     * 写入一个数字id的消息帧，flags写在总长度字段的高位
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final long correlationId,
+            final int code,
+            final byte[] data,
+            final int flags) {
+        final byte[] payload = nullToEmpty(data);
+        final int totalLength = checkLength((long) MIN_NUMERIC_FRAME_LENGTH + payload.length);
+
+        out.ensureWritable(totalLength);
+        out.writeInt(totalLength | NUMERIC_ID_FLAG | flags);
+        out.writeLong(correlationId);
+        out.writeInt(code);
+        out.writeInt(payload.length);
+        out.writeBytes(payload);
+    }
+
+    /**
+     * 握手帧总长度
+     */
+    public static int handshakeLength(final String version, final byte[] data) {
+        return INT_BYTES + ByteBufUtil.utf8Bytes(version)
+                + INT_BYTES + HANDSHAKE_PAYLOAD_FIXED_LENGTH + nullToEmpty(data).length;
+    }
+
+    /**
+     * 写入一个完整的握手帧
+     */
+    public static void writeHandshake(
+            final ByteBuf out,
+            final String version,
+            final int messageType,
+            final int code,
+            final byte[] data) {
+        final byte[] payload = nullToEmpty(data);
+        final int versionLength = ByteBufUtil.utf8Bytes(version);
+
+        out.ensureWritable(handshakeLength(version, payload));
+        out.writeInt(versionLength);
+        ByteBufUtil.reserveAndWriteUtf8(out, version, versionLength);
+        out.writeInt(HANDSHAKE_PAYLOAD_FIXED_LENGTH + payload.length);
+        out.writeInt(messageType);
+        out.writeInt(code);
+        out.writeInt(payload.length);
+        out.writeBytes(payload);
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private static byte[] nullToEmpty(final byte[] value) {
+        return value == null ? EMPTY : value;
+    }
+}
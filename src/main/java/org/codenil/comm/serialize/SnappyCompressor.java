@@ -0,0 +1,106 @@
+package org.codenil.comm.serialize;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuf上的Snappy压缩与解压
+ * 两端都是direct buffer时直接走ByteBuffer接口，否则尽量复用底层数组
+ */
+public final class SnappyCompressor {
+
+    private SnappyCompressor() {}
+
+    public static int maxCompressedLength(final int length) {
+        return Snappy.maxCompressedLength(length);
+    }
+
+    /**
+     * 压缩src的可读字节写入dst，返回压缩后长度，src的读索引不变
+     */
+    public static int compress(final ByteBuf src, final ByteBuf dst) throws IOException {
+        final int length = src.readableBytes();
+        final int maxLength = Snappy.maxCompressedLength(length);
+        dst.ensureWritable(maxLength);
+
+        final int written;
+        if (isSingleDirect(src) && isSingleDirect(dst)) {
+            written = Snappy.compress(
+                    src.nioBuffer(src.readerIndex(), length),
+                    dst.nioBuffer(dst.writerIndex(), maxLength));
+        } else if (dst.hasArray()) {
+            written = compressToArray(src, dst.array(), dst.arrayOffset() + dst.writerIndex());
+        } else {
+            final byte[] out = new byte[maxLength];
+            written = compressToArray(src, out, 0);
+            dst.setBytes(dst.writerIndex(), out, 0, written);
+        }
+        dst.writerIndex(dst.writerIndex() + written);
+        return written;
+    }
+
+    /**
+     * 读取压缩数据声明的原始长度
+     */
+    public static int uncompressedLength(final ByteBuf src) throws IOException {
+        if (isSingleDirect(src)) {
+            return Snappy.uncompressedLength(src.nioBuffer(src.readerIndex(), src.readableBytes()));
+        }
+        if (src.hasArray()) {
+            return Snappy.uncompressedLength(src.array(), src.arrayOffset() + src.readerIndex(), src.readableBytes());
+        }
+        final byte[] in = ByteBufUtil.getBytes(src);
+        return Snappy.uncompressedLength(in, 0, in.length);
+    }
+
+    /**
+     * 解压src的可读字节写入dst，dst需要预留足够空间，src的读索引不变
+     */
+    public static int uncompress(final ByteBuf src, final ByteBuf dst, final int uncompressedLength) throws IOException {
+        dst.ensureWritable(uncompressedLength);
+
+        final int written;
+        if (isSingleDirect(src) && isSingleDirect(dst)) {
+            written = Snappy.uncompress(
+                    src.nioBuffer(src.readerIndex(), src.readableBytes()),
+                    dst.nioBuffer(dst.writerIndex(), uncompressedLength));
+        } else {
+            final byte[] in;
+            final int inOffset;
+            if (src.hasArray()) {
+                in = src.array();
+                inOffset = src.arrayOffset() + src.readerIndex();
+            } else {
+                in = ByteBufUtil.getBytes(src);
+                inOffset = 0;
+            }
+            if (dst.hasArray()) {
+                written = Snappy.uncompress(in, inOffset, src.readableBytes(),
+                        dst.array(), dst.arrayOffset() + dst.writerIndex());
+            } else {
+                final byte[] out = new byte[uncompressedLength];
+                written = Snappy.uncompress(in, inOffset, src.readableBytes(), out, 0);
+                dst.setBytes(dst.writerIndex(), out, 0, written);
+            }
+        }
+        dst.writerIndex(dst.writerIndex() + written);
+        return written;
+    }
+
+    private static int compressToArray(final ByteBuf src, final byte[] out, final int outOffset) throws IOException {
+        if (src.hasArray()) {
+            return Snappy.compress(src.array(), src.arrayOffset() + src.readerIndex(),
+                    src.readableBytes(), out, outOffset);
+        }
+        final byte[] in = ByteBufUtil.getBytes(src);
+        return Snappy.compress(in, 0, in.length, out, outOffset);
+    }
+
+    private static boolean isSingleDirect(final ByteBuf buf) {
+        return buf.isDirect() && buf.nioBufferCount() == 1;
+    }
+}
@@ -0,0 +1,128 @@
+package org.codenil.comm.serialize;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * 2.0版本的帧写入，长度、id长度和code都用变长整数
+ *
+ * 消息帧：帧体长度(varint，不含自身) + flags(1) + id长度(varint) + id + code(varint) + data
+ * 数字id帧：帧体长度(varint，不含自身) + flags(1) + id(varlong) + code(varint) + data
+ * data长度由帧体长度推出，不单独编码
+ * 压缩时flags之后的内容为Snappy压缩后的数据，flags本身不压缩
+ * flags带响应标志时帧是对某个请求的响应，按id匹配发起的请求
+ */
+public final class VarintFrameWriter {
+
+    /** 压缩标志位 */
+    public static final int COMPRESSED_FLAG = 0x01;
+
+    /** 数字id标志位 */
+    public static final int NUMERIC_ID_FLAG = 0x02;
+
+    /** 响应标志位 */
+    public static final int RESPONSE_FLAG = 0x04;
+
+    public static final int KNOWN_FLAGS = COMPRESSED_FLAG | NUMERIC_ID_FLAG | RESPONSE_FLAG;
+
+    /** 最短的帧体：flags、id长度、code各1字节 */
+    public static final int MIN_BODY_LENGTH = 3;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private VarintFrameWriter() {}
+
+    /**
+     * 消息帧总长度
+     */
+    public static int frameLength(final String requestId, final int code, final byte[] data) {
+        final int idLength = ByteBufUtil.utf8Bytes(nullToEmpty(requestId));
+        return withLength(1 + Varints.sizeOf(idLength) + idLength
+                + Varints.sizeOf(code) + nullToEmpty(data).length);
+    }
+
+    /**
+     * 写入一个完整的消息帧
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final String requestId,
+            final int code,
+            final byte[] data) {
+        writeFrame(out, requestId, code, data, 0);
+    }
+
+    /**
+     * 写入一个完整的消息帧，带上额外的flags
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final String requestId,
+            final int code,
+            final byte[] data,
+            final int flags) {
+        final String id = nullToEmpty(requestId);
+        final byte[] payload = nullToEmpty(data);
+        final int idLength = ByteBufUtil.utf8Bytes(id);
+        final int bodyLength = 1 + Varints.sizeOf(idLength) + idLength
+                + Varints.sizeOf(code) + payload.length;
+
+        out.ensureWritable(withLength(bodyLength));
+        Varints.writeVarInt(out, bodyLength);
+        out.writeByte(flags);
+        Varints.writeVarInt(out, idLength);
+        ByteBufUtil.reserveAndWriteUtf8(out, id, idLength);
+        Varints.writeVarInt(out, code);
+        out.writeBytes(payload);
+    }
+
+    /**
+     * 数字id消息帧总长度
+     */
+    public static int frameLength(final long correlationId, final int code, final byte[] data) {
+        return withLength(1 + Varints.sizeOf(correlationId) + Varints.sizeOf(code) + nullToEmpty(data).length);
+    }
+
+    /**
+     * 写入一个数字id的消息帧
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final long correlationId,
+            final int code,
+            final byte[] data) {
+        writeFrame(out, correlationId, code, data, 0);
+    }
+
+    /**
+     * 写入一个数字id的消息帧，带上额外的flags
+     */
+    public static void writeFrame(
+            final ByteBuf out,
+            final long correlationId,
+            final int code,
+            final byte[] data,
+            final int flags) {
+        final byte[] payload = nullToEmpty(data);
+        final int bodyLength = 1 + Varints.sizeOf(correlationId) + Varints.sizeOf(code) + payload.length;
+
+        out.ensureWritable(withLength(bodyLength));
+        Varints.writeVarInt(out, bodyLength);
+        out.writeByte(NUMERIC_ID_FLAG | flags);
+        Varints.writeVarLong(out, correlationId);
+        Varints.writeVarInt(out, code);
+        out.writeBytes(payload);
+    }
+
+    private static int withLength(final int bodyLength) {
+        return Varints.sizeOf(bodyLength) + bodyLength;
+    }
+
+    private static String nullToEmpty(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private static byte[] nullToEmpty(final byte[] value) {
+        return value == null ? EMPTY : value;
+    }
+}
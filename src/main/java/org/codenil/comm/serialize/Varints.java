@@ -0,0 +1,131 @@
+package org.codenil.comm.serialize;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 无符号变长整数（LEB128），每字节低7位为数据，最高位表示后面还有字节
+ * int最多5字节，long最多10字节
+ */
+public final class Varints {
+
+    public static final int MAX_VARINT_BYTES = 5;
+
+    public static final int MAX_VARLONG_BYTES = 10;
+
+    private Varints() {}
+
+    public static int sizeOf(final int value) {
+        if ((value & (~0 << 7)) == 0) {
+            return 1;
+        }
+        if ((value & (~0 << 14)) == 0) {
+            return 2;
+        }
+        if ((value & (~0 << 21)) == 0) {
+            return 3;
+        }
+        if ((value & (~0 << 28)) == 0) {
+            return 4;
+        }
+        return 5;
+    }
+
+    public static int sizeOf(final long value) {
+        // 每7位一个字节，0也占一个字节
+        final int bits = Long.SIZE - Long.numberOfLeadingZeros(value | 1L);
+        return (bits + 6) / 7;
+    }
+
+    public static void writeVarInt(final ByteBuf out, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    /**
+     * 在指定位置写入，不改变写索引，返回写入的字节数
+     */
+    public static int setVarInt(final ByteBuf out, final int index, final int value) {
+        int remaining = value;
+        int i = index;
+        while ((remaining & ~0x7F) != 0) {
+            out.setByte(i++, (remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.setByte(i++, remaining);
+        return i - index;
+    }
+
+    public static void writeVarLong(final ByteBuf out, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) (remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    /**
+     * 指定位置上变长整数占用的字节数，数据不完整时返回0
+     */
+    public static int peekVarIntSize(final ByteBuf buf, final int index) {
+        final int limit = Math.min(buf.writerIndex() - index, MAX_VARINT_BYTES);
+        for (int i = 0; i < limit; i++) {
+            if ((buf.getByte(index + i) & 0x80) == 0) {
+                return i + 1;
+            }
+        }
+        if (limit == MAX_VARINT_BYTES) {
+            throw new IllegalArgumentException("Malformed varint");
+        }
+        return 0;
+    }
+
+    /**
+     * 读取指定位置上的变长整数，调用前需要用peekVarIntSize确认数据完整
+     */
+    public static int getVarInt(final ByteBuf buf, final int index) {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            final byte b = buf.getByte(index + i);
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static int readVarInt(final ByteBuf buf) {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (!buf.isReadable()) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            final byte b = buf.readByte();
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static long readVarLong(final ByteBuf buf) {
+        long value = 0;
+        for (int i = 0; i < MAX_VARLONG_BYTES; i++) {
+            if (!buf.isReadable()) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            final byte b = buf.readByte();
+            value |= (long) (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
@@ -4,11 +4,52 @@ public class Version {
 
     public static final String VERSION_1_0 = "1.0";
 
+    /** 变长整数帧格式 */
+    public static final String VERSION_2_0 = "2.0";
+
     public static boolean supported(String version) {
-        return VERSION_1_0.equals(version);
+        return VERSION_1_0.equals(version) || VERSION_2_0.equals(version);
     }
 
     public static String defaultVersion() {
         return VERSION_1_0;
     }
+
+    public static String latestVersion() {
+        return VERSION_2_0;
+    }
+
+    public static boolean isVarintFraming(String version) {
+        return VERSION_2_0.equals(version);
+    }
+
+    /**
+     * 取双方都支持的最高版本
+     * 对端版本无法识别时回退到1.0，对端版本更高时使用本端版本
+     */
+    public static String negotiate(String local, String remote) {
+        if (!supported(local)) {
+            return VERSION_1_0;
+        }
+        final int remoteMajor = major(remote);
+        if (remoteMajor < 0) {
+            return VERSION_1_0;
+        }
+        if (remoteMajor >= major(local)) {
+            return local;
+        }
+        return supported(remote) ? remote : VERSION_1_0;
+    }
+
+    private static int major(String version) {
+        if (version == null) {
+            return -1;
+        }
+        final int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }